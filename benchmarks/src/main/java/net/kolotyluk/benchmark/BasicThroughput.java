@@ -3,6 +3,7 @@ package net.kolotyluk.benchmark;
 import net.kolotyluk.loom.Experiment02_Throughput;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.runner.Runner;
@@ -37,6 +38,7 @@ import java.util.concurrent.TimeUnit;
  * $ java -jar target/benchmarks.jar PrimeNumbers
  * </pre>
  */
+@Fork(jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.concurrent"})
 public class BasicThroughput {
 
     static ThreadFactory platformThreadFactory = Thread.ofPlatform().factory();
@@ -506,4 +508,228 @@ public class BasicThroughput {
         Experiment02_Throughput.structuredThreads(Experiment02_Throughput.isPrimeTransactionally,10000, virtualThreadFactory);
     }
 
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalConcurrentStream1To_10() {
+        Experiment02_Throughput.concurrentStream(Experiment02_Throughput.doubleItTransactionally,10, 1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalConcurrentStream1To_100() {
+        Experiment02_Throughput.concurrentStream(Experiment02_Throughput.doubleItTransactionally,100, 1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalConcurrentStream1To_1000() {
+        Experiment02_Throughput.concurrentStream(Experiment02_Throughput.doubleItTransactionally,1000, 1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalConcurrentStream1To_10000() {
+        Experiment02_Throughput.concurrentStream(Experiment02_Throughput.doubleItTransactionally,10000, 1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalConcurrentStream2To_10() {
+        Experiment02_Throughput.concurrentStream(Experiment02_Throughput.isPrimeTransactionally,10, 1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalConcurrentStream2To_100() {
+        Experiment02_Throughput.concurrentStream(Experiment02_Throughput.isPrimeTransactionally,100, 1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalConcurrentStream2To_1000() {
+        Experiment02_Throughput.concurrentStream(Experiment02_Throughput.isPrimeTransactionally,1000, 1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalConcurrentStream2To_10000() {
+        Experiment02_Throughput.concurrentStream(Experiment02_Throughput.isPrimeTransactionally,10000, 1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void adaptive1To_10() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.doubleIt,10);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void adaptive1To_100() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.doubleIt,100);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void adaptive1To_1000() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.doubleIt,1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void adaptive1To_10000() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.doubleIt,10000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void adaptive2To_10() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.isPrime,10);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void adaptive2To_100() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.isPrime,100);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void adaptive2To_1000() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.isPrime,1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void adaptive2To_10000() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.isPrime,10000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalAdaptive1To_10() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.doubleItTransactionally,10);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalAdaptive1To_100() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.doubleItTransactionally,100);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalAdaptive1To_1000() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.doubleItTransactionally,1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalAdaptive1To_10000() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.doubleItTransactionally,10000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalAdaptive2To_10() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.isPrimeTransactionally,10);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalAdaptive2To_100() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.isPrimeTransactionally,100);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalAdaptive2To_1000() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.isPrimeTransactionally,1000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalAdaptive2To_10000() {
+        Experiment02_Throughput.adaptive(Experiment02_Throughput.isPrimeTransactionally,10000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalCachedStructuredPlatformThreads1To_10() {
+        Experiment02_Throughput.structuredThreads(Experiment02_Throughput.doubleItTransactionallyCached,10, platformThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalCachedStructuredPlatformThreads1To_100() {
+        Experiment02_Throughput.structuredThreads(Experiment02_Throughput.doubleItTransactionallyCached,100, platformThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalCachedStructuredPlatformThreads1To_1000() {
+        Experiment02_Throughput.structuredThreads(Experiment02_Throughput.doubleItTransactionallyCached,1000, platformThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalCachedStructuredPlatformThreads1To_10000() {
+        Experiment02_Throughput.structuredThreads(Experiment02_Throughput.doubleItTransactionallyCached,10000, platformThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalCachedStructuredVirtualThreads1To_10() {
+        Experiment02_Throughput.structuredThreads(Experiment02_Throughput.doubleItTransactionallyCached,10, virtualThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalCachedStructuredVirtualThreads1To_100() {
+        Experiment02_Throughput.structuredThreads(Experiment02_Throughput.doubleItTransactionallyCached,100, virtualThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalCachedStructuredVirtualThreads1To_1000() {
+        Experiment02_Throughput.structuredThreads(Experiment02_Throughput.doubleItTransactionallyCached,1000, virtualThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void transactionalCachedStructuredVirtualThreads1To_10000() {
+        Experiment02_Throughput.structuredThreads(Experiment02_Throughput.doubleItTransactionallyCached,10000, virtualThreadFactory);
+    }
+
 }
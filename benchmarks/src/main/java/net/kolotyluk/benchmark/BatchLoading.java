@@ -0,0 +1,135 @@
+package net.kolotyluk.benchmark;
+
+import net.kolotyluk.loom.BatchLoader;
+import net.kolotyluk.loom.Experiment02_Throughput;
+import net.kolotyluk.loom.Latencies;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+/**
+ * <h1>Batch Size vs Throughput and Latency</h1>
+ * <p>
+ *     Fork <tt>limit</tt> Virtual Threads that each load one key, either each making its own call with
+ *     {@link Experiment02_Throughput#doubleItTransactionally}, or via a {@link BatchLoader} calling
+ *     {@link Experiment02_Throughput#doubleAllTransactionally}, where a batch of keys costs the same 1 ms
+ *     {@link net.kolotyluk.loom.Lag} as a single key. A batch size of 1 measures the overhead of the loader itself.
+ * </p>
+ * <p>
+ *     The throughput benchmarks report operations per second, where each operation is the whole fan-out, so the
+ *     items per second is <tt>limit</tt> times that. The latency benchmarks time each caller's own call, including
+ *     its wait for a batch to fill up, into {@link Latencies}, and print the percentiles at the end of each
+ *     iteration. Their JMH score is the time of the whole fan-out, the makespan, which says nothing about the tail a
+ *     single caller sees, so read the printed percentiles instead.
+ * </p>
+ * Run the benchmarks.
+ * <pre>
+ * $ cd benchmarks
+ * $ mvn clean install
+ * $ java -jar target/benchmarks.jar BatchLoading
+ * </pre>
+ */
+@Fork(jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.concurrent"})
+@State(Scope.Benchmark)
+public class BatchLoading {
+
+    static ThreadFactory virtualThreadFactory = Thread.ofVirtual().factory();
+
+    @Param({"1", "10", "100", "1000"})
+    public int batchSize;
+
+    @Param({"100000"})
+    public long maximumDelayNanos;
+
+    @Param({"10000"})
+    public long limit;
+
+    BatchLoader<Long> loader;
+    Latencies latencies;
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(BatchLoading.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    @Setup
+    public void setup() {
+        loader = new BatchLoader<>(batchSize, Duration.ofNanos(maximumDelayNanos), Experiment02_Throughput.doubleAllTransactionally);
+    }
+
+    /**
+     * Samples beyond the capacity are counted, but dropped, so long iterations keep the calls from their start.
+     */
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        latencies = new Latencies(1_000_000);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        if (latencies.count() > 0) System.out.println("\n    batchSize = " + batchSize + ", per caller latency: " + latencies.summary());
+    }
+
+    LongFunction<Long> timed(LongFunction<Long> task) {
+        return value -> {
+            var startTime = System.nanoTime();
+            try {
+                return task.apply(value);
+            }
+            finally {
+                latencies.record(System.nanoTime() - startTime);
+            }
+        };
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<Long> perItemThroughput() {
+        return Experiment02_Throughput.structuredThreads(Experiment02_Throughput.doubleItTransactionally, limit, virtualThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<Long> batchedThroughput() {
+        return Experiment02_Throughput.structuredThreads(loader::load, limit, virtualThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Long> perItemLatency() {
+        return Experiment02_Throughput.structuredThreads(timed(Experiment02_Throughput.doubleItTransactionally), limit, virtualThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Long> batchedLatency() {
+        return Experiment02_Throughput.structuredThreads(timed(loader::load), limit, virtualThreadFactory);
+    }
+
+}
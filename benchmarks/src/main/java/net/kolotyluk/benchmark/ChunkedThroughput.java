@@ -0,0 +1,72 @@
+package net.kolotyluk.benchmark;
+
+import net.kolotyluk.loom.Experiment02_Throughput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Chunk Size vs Throughput</h1>
+ * <p>
+ *     Traces the curve of chunk size against throughput for
+ *     {@link Experiment02_Throughput#chunkedThreads(java.util.function.LongFunction, long, int, ThreadFactory)}
+ *     on Virtual Threads, where a chunk size of 1 is the same as
+ *     {@link Experiment02_Throughput#structuredThreads(java.util.function.LongFunction, long, ThreadFactory)}, and
+ *     a chunk size of 0 is adaptive. Compare with the <tt>baselineStream</tt> and <tt>parallelStream</tt> results in
+ *     {@link BasicThroughput}.
+ * </p>
+ * Run the benchmarks.
+ * <pre>
+ * $ cd benchmarks
+ * $ mvn clean install
+ * $ java -jar target/benchmarks.jar ChunkedThroughput
+ * </pre>
+ */
+@Fork(jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.concurrent"})
+@State(Scope.Benchmark)
+public class ChunkedThroughput {
+
+    static ThreadFactory virtualThreadFactory = Thread.ofVirtual().factory();
+
+    @Param({"1", "10", "100", "1000", "10000", "0"})
+    public int chunkSize;
+
+    @Param({"10000", "1000000"})
+    public long limit;
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ChunkedThroughput.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void chunkedVirtualThreads1() {
+        Experiment02_Throughput.chunkedThreads(Experiment02_Throughput.doubleIt, limit, chunkSize, virtualThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void chunkedVirtualThreads2() {
+        Experiment02_Throughput.chunkedThreads(Experiment02_Throughput.isPrime, limit, chunkSize, virtualThreadFactory);
+    }
+
+}
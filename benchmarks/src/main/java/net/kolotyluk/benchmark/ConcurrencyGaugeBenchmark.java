@@ -0,0 +1,115 @@
+package net.kolotyluk.benchmark;
+
+import net.kolotyluk.loom.ConcurrencyGauge;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>Counting Tasks in Flight</h1>
+ * <p>
+ *     Compares the cost of tracking the number of tasks in flight, and its maximum, with a pair of shared
+ *     {@link AtomicLong}s and a compare-and-set loop, as the experiments used to, against a striped
+ *     {@link ConcurrencyGauge}. With one thread there should be little difference, but as threads are added the
+ *     shared counters should fall behind as every core fights over the same cache line.
+ * </p>
+ * Run the benchmarks.
+ * <pre>
+ * $ cd benchmarks
+ * $ mvn clean install
+ * $ java -jar target/benchmarks.jar ConcurrencyGaugeBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+public class ConcurrencyGaugeBenchmark {
+
+    final AtomicLong threadCount  = new AtomicLong(0);
+    final AtomicLong threadMaximum = new AtomicLong(0);
+    final ConcurrencyGauge gauge = new ConcurrencyGauge();
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ConcurrencyGaugeBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    long atomic() {
+        threadCount.getAndIncrement();
+        var postCount = threadCount.getAndDecrement();
+        var maximum = 0L;
+        do {
+            maximum = threadMaximum.get();
+            if (postCount <= maximum) break;
+        } while (!threadMaximum.compareAndSet(maximum, postCount));
+        return postCount;
+    }
+
+    long gauge() {
+        gauge.enter();
+        gauge.exit();
+        return 0;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(1)
+    public long atomic_1() {
+        return atomic();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(4)
+    public long atomic_4() {
+        return atomic();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(Threads.MAX)
+    public long atomic_max() {
+        return atomic();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(1)
+    public long gauge_1() {
+        return gauge();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(4)
+    public long gauge_4() {
+        return gauge();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(Threads.MAX)
+    public long gauge_max() {
+        return gauge();
+    }
+
+}
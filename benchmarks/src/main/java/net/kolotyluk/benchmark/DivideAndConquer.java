@@ -0,0 +1,159 @@
+package net.kolotyluk.benchmark;
+
+import net.kolotyluk.loom.Experiment12_Recursion;
+import net.kolotyluk.loom.StructuredRecursion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Divide and Conquer, Structured vs Fork Join</h1>
+ * <p>
+ *     The three problems of {@link Experiment12_Recursion}, prime count, sum and merge sort, each solved
+ *     sequentially, as a {@link java.util.concurrent.RecursiveTask} on the {@link ForkJoinPool#commonPool()}, and
+ *     with nested {@link jdk.incubator.concurrent.StructuredTaskScope}s on Virtual Threads, via
+ *     {@link StructuredRecursion}.
+ * </p>
+ * <p>
+ *     The recursion stops splitting at <tt>grain</tt> items, or at <tt>maximumDepth</tt> splits, whichever comes
+ *     first, so with <tt>size = 1,000,000</tt> a grain of 100 is a depth of 14, and 16,384 leaves, unless the
+ *     depth is capped lower. Sequential does not depend on either, but is run for each, as the baseline.
+ * </p>
+ * <p>
+ *     Sum does almost nothing per item, so it shows the overhead of each split, a task for Fork Join, a thread and
+ *     a scope for Structured. Prime count does a lot per item, so the overhead should disappear, except at the
+ *     finest grain. Merge sort copies a fresh unsorted array in each operation, for all three, so it is only the
+ *     difference between them that counts.
+ * </p>
+ * Run the benchmarks.
+ * <pre>
+ * $ cd benchmarks
+ * $ mvn clean install
+ * $ java -jar target/benchmarks.jar DivideAndConquer
+ * </pre>
+ */
+@Fork(jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.concurrent"})
+@State(Scope.Benchmark)
+public class DivideAndConquer {
+
+    static ThreadFactory virtualThreadFactory = Thread.ofVirtual().factory();
+
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"100", "1000", "10000", "100000"})
+    public long grain;
+
+    @Param({"4", "8", "64"})
+    public int maximumDepth;
+
+    long[] array;
+    long[] unsorted;
+    long[] buffer;
+
+    StructuredRecursion<Long> primeCount;
+    StructuredRecursion<Long> sum;
+    StructuredRecursion<Experiment12_Recursion.Sorted> mergeSort;
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(DivideAndConquer.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    @Setup
+    public void setup() {
+        unsorted = new Random(0).longs(size).toArray();
+        array = unsorted.clone();
+        buffer = new long[size];
+        primeCount = Experiment12_Recursion.primeCount(grain, maximumDepth, virtualThreadFactory);
+        sum = Experiment12_Recursion.sum(array, grain, maximumDepth, virtualThreadFactory);
+        mergeSort = Experiment12_Recursion.mergeSort(array, buffer, grain, maximumDepth, virtualThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long primeCountSequential() {
+        return primeCount.sequential(0, size);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long primeCountForkJoin() {
+        return primeCount.forkJoin(0, size, ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long primeCountStructured() throws ExecutionException, InterruptedException {
+        return primeCount.compute(0, size);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long sumSequential() {
+        return sum.sequential(0, size);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long sumForkJoin() {
+        return sum.forkJoin(0, size, ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long sumStructured() throws ExecutionException, InterruptedException {
+        return sum.compute(0, size);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Experiment12_Recursion.Sorted mergeSortSequential() {
+        System.arraycopy(unsorted, 0, array, 0, size);
+        return mergeSort.sequential(0, size);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Experiment12_Recursion.Sorted mergeSortForkJoin() {
+        System.arraycopy(unsorted, 0, array, 0, size);
+        return mergeSort.forkJoin(0, size, ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Experiment12_Recursion.Sorted mergeSortStructured() throws ExecutionException, InterruptedException {
+        System.arraycopy(unsorted, 0, array, 0, size);
+        return mergeSort.compute(0, size);
+    }
+
+}
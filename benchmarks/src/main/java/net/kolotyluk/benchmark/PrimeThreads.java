@@ -3,6 +3,7 @@ package net.kolotyluk.benchmark;
 import net.kolotyluk.loom.Experiment10_PrimeStreams;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.runner.Runner;
@@ -54,6 +55,7 @@ import java.util.concurrent.TimeUnit;
  * PrimeThreads.virtualPrimesTo_10_000_000    5,000,000     151.248  31.569
  * </pre>
  */
+@Fork(jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.concurrent"})
 public class PrimeThreads {
 
     public static void main(String[] args) throws RunnerException {
@@ -113,4 +115,25 @@ public class PrimeThreads {
         Experiment10_PrimeStreams.futurePrimes22(10_000_000, platformThreadFactory);
     }
 
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void boundedVirtualPrimesTo_1000() {
+        Experiment10_PrimeStreams.boundedPrimes(1_000, 10_000, virtualThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void boundedVirtualPrimesTo_10_000() {
+        Experiment10_PrimeStreams.boundedPrimes(10_000, 10_000, virtualThreadFactory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void boundedVirtualPrimesTo_10_000_000() {
+        Experiment10_PrimeStreams.boundedPrimes(10_000_000, 10_000, virtualThreadFactory);
+    }
+
 }
@@ -0,0 +1,131 @@
+package net.kolotyluk.benchmark;
+
+import jdk.incubator.concurrent.StructuredTaskScope;
+import net.kolotyluk.loom.BestResultScope;
+import net.kolotyluk.loom.Lag;
+import net.kolotyluk.loom.QuorumScope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Quorum Reads on Replicas</h1>
+ * <p>
+ *     Read from 5 replicas, each simulated by a {@link Lag} of between 1 and 20 ms, with different completion
+ *     policies. Waiting for all of them costs the slowest of 5 random lags, close to 20 ms, while the first costs the
+ *     fastest, close to 1 ms, and the first 2, or a majority of 3, fall in between. The best within a deadline costs
+ *     the deadline, unless every replica answers sooner.
+ * </p>
+ * Run the benchmarks.
+ * <pre>
+ * $ cd benchmarks
+ * $ mvn clean install
+ * $ java -jar target/benchmarks.jar QuorumReplicas
+ * </pre>
+ */
+@Fork(jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.concurrent"})
+public class QuorumReplicas {
+
+    static final int replicas = 5;
+    static final Lag replicaLag = new Lag(Duration.ofMillis(1), Duration.ofMillis(20));
+    static final ThreadFactory virtualThreadFactory = Thread.ofVirtual().factory();
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(QuorumReplicas.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    static Long read(long replica) {
+        return replica + replicaLag.sleep().toNanos();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void all() throws InterruptedException, ExecutionException {
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure(null, virtualThreadFactory)) {
+            for (long replica = 0; replica < replicas; replica++) {
+                final var item = replica;
+                scope.fork(() -> read(item));
+            }
+            scope.join();
+            scope.throwIfFailed();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Long first() throws InterruptedException, ExecutionException {
+        try (var scope = new StructuredTaskScope.ShutdownOnSuccess<Long>(null, virtualThreadFactory)) {
+            for (long replica = 0; replica < replicas; replica++) {
+                final var item = replica;
+                scope.fork(() -> read(item));
+            }
+            scope.join();
+            return scope.result();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Long> firstTwo() throws InterruptedException, ExecutionException {
+        try (var scope = QuorumScope.<Long>firstK(2, virtualThreadFactory)) {
+            for (long replica = 0; replica < replicas; replica++) {
+                final var item = replica;
+                scope.fork(() -> read(item));
+            }
+            scope.join();
+            return scope.results();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Long> majority() throws InterruptedException, ExecutionException {
+        try (var scope = QuorumScope.<Long>majority(replicas, virtualThreadFactory)) {
+            for (long replica = 0; replica < replicas; replica++) {
+                final var item = replica;
+                scope.fork(() -> read(item));
+            }
+            scope.join();
+            return scope.results();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Optional<Long> bestWithin10ms() throws InterruptedException {
+        // Lowest lag is best, as a stand in for any measure of quality
+        try (var scope = new BestResultScope<Long>(Comparator.<Long>naturalOrder().reversed(), virtualThreadFactory)) {
+            for (long replica = 0; replica < replicas; replica++) {
+                final var item = replica;
+                scope.fork(() -> read(item));
+            }
+            return scope.joinBest(Instant.now().plusMillis(10));
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package net.kolotyluk.benchmark;
+
+import net.kolotyluk.loom.RateLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Rate Limiter Overhead and Accuracy</h1>
+ * <p>
+ *     The <tt>unlimited</tt> benchmarks use a {@link RateLimiter} with a rate so high that no permit ever waits, so
+ *     they measure the overhead of taking a permit, a single compare-and-set, with and without contention.
+ * </p>
+ * <p>
+ *     The <tt>limited</tt> benchmarks take permits as fast as they can from limiters of 100k and 1M permits per
+ *     second, so the score should be the rate, no more, and not much less. Any shortfall is the cost of parking and
+ *     waking the threads on time.
+ * </p>
+ * <p>
+ *     See also <tt>Experiment02_Throughput.rateLimiting</tt> for a million Virtual Threads all waiting at once.
+ * </p>
+ * Run the benchmarks.
+ * <pre>
+ * $ cd benchmarks
+ * $ mvn clean install
+ * $ java -jar target/benchmarks.jar RateLimiting
+ * </pre>
+ */
+@State(Scope.Benchmark)
+public class RateLimiting {
+
+    final RateLimiter unlimited = RateLimiter.tokenBucket(1e12, 1);
+    final RateLimiter limited_100k = RateLimiter.tokenBucket(100_000, 100);
+    final RateLimiter limited_1M = RateLimiter.tokenBucket(1_000_000, 1000);
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(RateLimiting.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(1)
+    public boolean unlimited_1() {
+        return unlimited.tryAcquire();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(Threads.MAX)
+    public boolean unlimited_max() {
+        return unlimited.tryAcquire();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(Threads.MAX)
+    public Duration limited_100k() throws InterruptedException {
+        return limited_100k.acquire();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(Threads.MAX)
+    public Duration limited_1M() throws InterruptedException {
+        return limited_1M.acquire();
+    }
+
+}
@@ -0,0 +1,133 @@
+package net.kolotyluk.benchmark;
+
+import jdk.incubator.concurrent.StructuredTaskScope;
+import net.kolotyluk.loom.ScopeTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Scope Nesting Overhead</h1>
+ * <p>
+ *     What does a {@link StructuredTaskScope} cost, and does it cost more the deeper it is nested?
+ * </p>
+ * <dl>
+ *     <dt>nestedScopes</dt>
+ *     <dd><tt>depth</tt> empty scopes, one inside the other, in the same thread, each joined and closed, so the
+ *     cost of opening, joining and closing a scope, with nothing to wait for.</dd>
+ *     <dt>nestedForks</dt>
+ *     <dd>A chain <tt>depth</tt> long, where each level opens a scope and forks a single subtask, which opens the
+ *     next level, so the cost of a scope plus a fork, a Virtual Thread, and waiting for it, per level.</dd>
+ *     <dt>tree</dt>
+ *     <dd>A {@link ScopeTree}, where each node forks <tt>fanOut</tt> children, <tt>depth</tt> levels deep, and each
+ *     leaf is trivial, so all that is measured is the tree itself. The bottom <tt>inlineLevels</tt> levels of the
+ *     tree run inline in their parent thread, with no scopes or threads, where 0 never inlines.</dd>
+ * </dl>
+ * <p>
+ *     With no inlining, almost all the threads of a tree are at the bottom level, <tt>fanOut^depth</tt> of them,
+ *     each just to return 1, so the time per leaf is the overhead of a fork, and inlining just the bottom level
+ *     should take away most of it.
+ * </p>
+ * <p>
+ *     See also <tt>DivideAndConquer</tt>, where the same trade-off is the grain size of a recursion.
+ * </p>
+ * Run the benchmarks.
+ * <pre>
+ * $ cd benchmarks
+ * $ mvn clean install
+ * $ java -jar target/benchmarks.jar ScopeNesting
+ * </pre>
+ */
+@Fork(jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.concurrent"})
+public class ScopeNesting {
+
+    static ThreadFactory virtualThreadFactory = Thread.ofVirtual().factory();
+
+    @State(Scope.Benchmark)
+    public static class Chain {
+        @Param({"1", "2", "4", "8", "16", "32"})
+        public int depth;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Tree {
+        @Param({"2", "8", "32"})
+        public int fanOut;
+
+        @Param({"1", "2", "3", "4"})
+        public int depth;
+
+        @Param({"0", "1", "2"})
+        public int inlineLevels;
+
+        ScopeTree tree;
+
+        @Setup
+        public void setup() {
+            var inlineBelow = inlineLevels == 0 ? 0 : (long) Math.pow(fanOut, inlineLevels);
+            tree = new ScopeTree(fanOut, depth, inlineBelow, virtualThreadFactory, () -> 1);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ScopeNesting.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    static int openScopes(int level) throws InterruptedException {
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure(null, virtualThreadFactory)) {
+            var result = level > 1 ? openScopes(level - 1) : level;
+            scope.join();
+            return result;
+        }
+    }
+
+    static int forkChain(int level) throws InterruptedException, ExecutionException {
+        if (level == 0) return 0;
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure(null, virtualThreadFactory)) {
+            var child = scope.fork(() -> forkChain(level - 1));
+            scope.join().throwIfFailed();
+            return child.resultNow() + 1;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int nestedScopes(Chain chain) throws InterruptedException {
+        return openScopes(chain.depth);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int nestedForks(Chain chain) throws InterruptedException, ExecutionException {
+        return forkChain(chain.depth);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long tree(Tree tree) throws InterruptedException, ExecutionException {
+        return tree.tree.compute();
+    }
+
+}
@@ -0,0 +1,216 @@
+package net.kolotyluk.loom;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.LongFunction;
+import java.util.stream.LongStream;
+
+/**
+ * <h1>Adaptive Executor</h1>
+ * <p>
+ *     What we have learned from {@link Experiment02_Throughput} is that {@link java.util.stream.Stream#parallel()}
+ *     wins for computational tasks, like {@link Experiment02_Throughput#isPrime}, and Virtual Threads win for
+ *     transactional tasks, like {@link Experiment02_Throughput#doubleItTransactionally}, but the caller still has
+ *     to know which kind of task they have.
+ * </p>
+ * <p>
+ *     Instead, {@link #map(LongFunction, long)} runs the first few items itself, measuring how much of the elapsed
+ *     time was spent on the CPU, and uses that to pick a {@link Route} for the rest.
+ * </p>
+ * <pre>
+ * var results = AdaptiveExecutor.map(task, 10_000);
+ * </pre>
+ * <h2>Routes</h2>
+ * <ul>
+ *     <li>
+ *         {@link Route#PARALLEL_STREAM} when the task is almost all CPU, so there is nothing to gain from more
+ *         threads than cores.
+ *     </li>
+ *     <li>
+ *         {@link Route#VIRTUAL_THREADS} when the task is almost all waiting, so every item gets its own Virtual
+ *         Thread, as in {@link Experiment02_Throughput#structuredThreads(LongFunction, long, ThreadFactory)}.
+ *     </li>
+ *     <li>
+ *         {@link Route#HYBRID} in between, where the items run on Virtual Threads via
+ *         {@link ConcurrentStreams#mapConcurrent(LongStream, int, LongFunction)}, but only as many in flight as it
+ *         takes to keep the cores busy. By Little's Law, if a task spends <tt>cpu</tt> of every <tt>wall</tt> on
+ *         the CPU, that is about <tt>cores &times; wall / cpu</tt>, and any more just queue for a carrier.
+ *     </li>
+ * </ul>
+ * <h2>Measuring</h2>
+ * <p>
+ *     CPU time comes from {@link ThreadMXBean#getCurrentThreadCpuTime()}, which is not supported for Virtual
+ *     Threads, so if we are called on one, the sampling is done on a Platform Thread instead. The samples are run
+ *     one at a time, because the ratio is only meaningful if nothing else is sharing the thread.
+ * </p>
+ * <p>
+ *     Note: this assumes the sampled items are typical of the rest. A workload whose items vary widely, or change
+ *     character part way through, can be routed badly.
+ * </p>
+ */
+public class AdaptiveExecutor {
+
+    /**
+     * Where the rest of the items are sent after sampling.
+     */
+    public enum Route { PARALLEL_STREAM, VIRTUAL_THREADS, HYBRID }
+
+    /**
+     * At or above this fraction of CPU to wall time, the task is computational.
+     */
+    static final double cpuBound = 0.9;
+
+    /**
+     * At or below this fraction of CPU to wall time, the task is transactional.
+     */
+    static final double ioBound = 0.1;
+
+    /**
+     * Sample at least this many items...
+     */
+    static final int minimumSamples = 3;
+
+    /**
+     * ...and keep sampling until they add up to this much wall time, or we run out of {@link #maximumSamples(long)}.
+     */
+    static final Duration sampleTarget = Duration.ofMillis(5);
+
+    static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * What we learned from sampling.
+     * @param samples number of items sampled
+     * @param cpuTime total CPU time of the samples
+     * @param wallTime total elapsed time of the samples
+     */
+    public record Profile(int samples, Duration cpuTime, Duration wallTime) {
+
+        /**
+         * @return fraction of the elapsed time spent on the CPU, between 0.0 and 1.0
+         */
+        public double cpuRatio() {
+            if (wallTime.isZero()) return 1.0;
+            return Math.min(1.0, (double) cpuTime.toNanos() / wallTime.toNanos());
+        }
+
+        /**
+         * @return where the remaining items should go
+         */
+        public Route route() {
+            var ratio = cpuRatio();
+            if (ratio >= cpuBound) return Route.PARALLEL_STREAM;
+            if (ratio <= ioBound) return Route.VIRTUAL_THREADS;
+            return Route.HYBRID;
+        }
+
+        /**
+         * @return number of items to keep in flight for {@link Route#HYBRID}
+         */
+        public int window() {
+            var ratio = Math.max(cpuRatio(), ioBound);
+            return (int) Math.ceil(Context.availableProcessors / ratio);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Profile[samples = %d, cpu = %d us, wall = %d us, ratio = %.2f, route = %s]",
+                    samples, cpuTime.toNanos() / 1000, wallTime.toNanos() / 1000, cpuRatio(), route());
+        }
+    }
+
+    /**
+     * Sample the first few items of <tt>task</tt>, then route the rest to whatever suits it best.
+     * @param task to run
+     * @param limit number of tasks
+     * @return results in order
+     */
+    public static List<Long> map(LongFunction<Long> task, long limit) {
+        var results = new ArrayList<Long>(Math.toIntExact(limit));
+        var profile = sample(task, limit, results);
+        var from = results.size();
+        results.addAll(switch (profile.route()) {
+            case PARALLEL_STREAM -> LongStream.range(from, limit).parallel().mapToObj(task).toList();
+            case VIRTUAL_THREADS -> virtualThreads(task, from, limit);
+            case HYBRID -> {
+                try (var stream = ConcurrentStreams.mapConcurrent(LongStream.range(from, limit), profile.window(), task)) {
+                    yield stream.toList();
+                }
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Run the first few items of <tt>task</tt>, one at a time, on a Platform Thread.
+     * @param task to run
+     * @param limit number of tasks
+     * @param results where the results of the sampled items are added, in order
+     * @return profile of the sampled items
+     */
+    public static Profile sample(LongFunction<Long> task, long limit, List<Long> results) {
+        if (!Thread.currentThread().isVirtual()) return sampleHere(task, limit, results);
+        var profile = new Profile[1];
+        var thread = Thread.ofPlatform().name("AdaptiveExecutor.sample").start(() -> profile[0] = sampleHere(task, limit, results));
+        var interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // Let the thread finish sampling, so that results is complete, then pass the interrupt on
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        return profile[0];
+    }
+
+    static Profile sampleHere(LongFunction<Long> task, long limit, List<Long> results) {
+        var maximum = maximumSamples(limit);
+        var item = 0;
+        // The first item is mostly class loading and interpretation, which is not typical, so it is not measured
+        if (limit > minimumSamples) results.add(task.apply(item++));
+        var first = item;
+        // Time the samples as a whole, as timing each item separately would mostly measure the timing
+        var cpuStart = threadMXBean.getCurrentThreadCpuTime();
+        var wallStart = System.nanoTime();
+        var wallTime = 0L;
+        for (; item < maximum && (item - first < minimumSamples || wallTime < sampleTarget.toNanos()); item++) {
+            results.add(task.apply(item));
+            wallTime = System.nanoTime() - wallStart;
+        }
+        var cpuTime = threadMXBean.getCurrentThreadCpuTime() - cpuStart;
+        return new Profile(item - first, Duration.ofNanos(cpuTime), Duration.ofNanos(wallTime));
+    }
+
+    /**
+     * @param limit number of tasks
+     * @return at most a tenth of the items, as they are run serially, but enough for {@link #minimumSamples}
+     */
+    static long maximumSamples(long limit) {
+        return Math.min(limit, Math.max(minimumSamples + 1, limit / 10));
+    }
+
+    static List<Long> virtualThreads(LongFunction<Long> task, long from, long limit) {
+        var size = Math.toIntExact(limit - from);
+        try (var scope = new LongResultScope(size, Thread.ofVirtual().factory())) {
+            for (int index = 0; index < size; index++) {
+                final long item = from + index;
+                scope.fork(index, () -> task.apply(item));
+            }
+            scope.join();
+            return LongStream.of(scope.results()).boxed().toList();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) throw runtimeException;
+            if (e.getCause() instanceof Error error) throw error;
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package net.kolotyluk.loom;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>Admission Control</h1>
+ * <p>
+ *     When work arrives faster than we can do it, something has to give. With Virtual Threads nothing stops us from
+ *     accepting all of it, so the queue grows, every request waits longer, and soon every request takes longer than
+ *     its caller is willing to wait, so we are busy doing work nobody wants any more. Throughput stays high, but
+ *     <em>goodput</em>, the work done in time to be useful, collapses to zero.
+ * </p>
+ * <p>
+ *     An admission controller decides, before doing the work, whether it is worth doing, and rejects what is not,
+ *     quickly, so that the work it does admit is done in time. At most <tt>maximumInFlight</tt> calls run at once,
+ *     and the rest wait in a FIFO queue, while the {@link Policy} decides who gets rejected.
+ * </p>
+ * <pre>
+ * var admission = new AdmissionController(Policy.CODEL, 100, Duration.ofMillis(5), Duration.ofMillis(100));
+ * . . .
+ * try {
+ *     admission.call(() -> downstream.call(value));
+ * } catch (AdmissionController.Rejected e) {
+ *     // tell the caller to come back later
+ * }
+ * </pre>
+ * <h2>Policies</h2>
+ * <ul>
+ *     <li><b>IN_FLIGHT</b> rejects right away when <tt>maximumInFlight</tt> calls are running, there is no queue
+ *     at all.</li>
+ *     <li><b>QUEUE_AGE</b> rejects a call that has waited in the queue longer than <tt>target</tt>.</li>
+ *     <li><b>CODEL</b> is the controlled delay of Nichols and Jacobson, as adapted for request queues in
+ *     <a href="https://queue.acm.org/detail.cfm?id=2839461">Fail at Scale</a>. If the queue has not been
+ *     near empty, with a wait under <tt>target</tt>, at some time in the last <tt>interval</tt>, it is a standing
+ *     queue, not a burst, and calls may only wait <tt>target</tt>, otherwise they may wait <tt>interval</tt>. So
+ *     bursts are absorbed, while sustained overload is shed.</li>
+ * </ul>
+ * <p>
+ *     Note: a rejected call leaves the queue without taking a slot, so shedding costs no more than the wait.
+ * </p>
+ */
+public class AdmissionController {
+
+    public enum Policy { IN_FLIGHT, QUEUE_AGE, CODEL }
+
+    /**
+     * Thrown instead of making the call, when it is not admitted.
+     */
+    public static class Rejected extends RuntimeException {
+        public Rejected(String message) {
+            super(message, null, false, false); // no stack trace, under overload there will be lots of these
+        }
+    }
+
+    final Policy policy;
+    final int maximumInFlight;
+    final long target;
+    final long interval;
+    final Semaphore slots;
+    final AtomicLong admitted = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong queueTime = new AtomicLong();
+    volatile long lastBelowTarget = System.nanoTime();
+
+    /**
+     * @param policy for rejecting calls
+     * @param maximumInFlight most calls running at once
+     * @param target longest acceptable wait in the queue, when overloaded
+     * @param interval how long the wait must stay above <tt>target</tt> before it counts as overload, only used by
+     *                 {@link Policy#CODEL}
+     */
+    public AdmissionController(Policy policy, int maximumInFlight, Duration target, Duration interval) {
+        if (maximumInFlight < 1) throw new IllegalArgumentException("maximumInFlight must be positive");
+        this.policy = policy;
+        this.maximumInFlight = maximumInFlight;
+        this.target = target.toNanos();
+        this.interval = interval.toNanos();
+        this.slots = new Semaphore(maximumInFlight, true);
+    }
+
+    /**
+     * Make the call, if it is admitted.
+     * @param callable to call
+     * @return result of the call
+     * @param <T> type of result
+     * @throws Rejected if the call was not admitted
+     * @throws Exception from the call
+     */
+    public <T> T call(Callable<T> callable) throws Exception {
+        admit();
+        try {
+            return callable.call();
+        }
+        finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * @param callable to guard
+     * @return callable that calls through this controller
+     * @param <T> type of result
+     */
+    public <T> Callable<T> decorate(Callable<T> callable) {
+        return () -> call(callable);
+    }
+
+    void admit() throws InterruptedException {
+        var arrival = System.nanoTime();
+        var acquired = switch (policy) {
+            case IN_FLIGHT -> slots.tryAcquire();
+            case QUEUE_AGE -> slots.tryAcquire(target, TimeUnit.NANOSECONDS);
+            case CODEL -> slots.tryAcquire(arrival - lastBelowTarget > interval ? target : interval, TimeUnit.NANOSECONDS);
+        };
+        var now = System.nanoTime();
+        var sojourn = now - arrival;
+        if (sojourn < target) lastBelowTarget = now;
+        if (!acquired) {
+            rejected.incrementAndGet();
+            throw new Rejected(policy + " rejected after " + sojourn / 1000 + " us");
+        }
+        admitted.incrementAndGet();
+        queueTime.addAndGet(sojourn);
+    }
+
+    /**
+     * @return calls admitted
+     */
+    public long admitted() {
+        return admitted.get();
+    }
+
+    /**
+     * @return calls rejected
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        var admitted = this.admitted.get();
+        return String.format("AdmissionController[policy = %s, maximum in flight = %d, admitted = %d, rejected = %d, average queue time = %.3f ms]",
+                policy, maximumInFlight, admitted, rejected.get(), admitted == 0 ? 0.0 : queueTime.get() / 1e6 / admitted);
+    }
+}
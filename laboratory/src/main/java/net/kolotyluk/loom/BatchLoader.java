@@ -0,0 +1,160 @@
+package net.kolotyluk.loom;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * <h1>Batch Loader</h1>
+ * <p>
+ *     {@link Experiment02_Throughput#doubleItTransactionally} pays a whole round trip, one {@link Lag}, for each item,
+ *     while most real backends, such as a database with <tt>WHERE id IN (...)</tt>, or a REST endpoint that takes a
+ *     list, can answer many keys in one round trip. With a thread per request, each thread only has one key, so to
+ *     use the batch call, we need to collect keys across threads, like the JavaScript
+ *     <a href="https://github.com/graphql/dataloader">DataLoader</a>.
+ * </p>
+ * <pre>
+ * var loader = new BatchLoader&lt;Long&gt;(100, Duration.ofNanos(100_000), keys -> backend.getAll(keys));
+ * LongFunction&lt;Long&gt; task = loader::load;
+ * . . .
+ * System.out.println(loader); // how many batches, and how full
+ * </pre>
+ * <p>
+ *     The first caller to find no open batch opens one, and becomes its leader. Callers that follow add their keys
+ *     to the open batch, until it has <tt>maximumSize</tt> keys, or <tt>maximumDelay</tt> has passed since it was
+ *     opened, whichever comes first. Then the leader closes the batch, makes the batch call in its own thread, and
+ *     hands each caller its own result, the same as if it had made its own call. The leader does not need a timer
+ *     thread, it just waits for the batch to fill up, or time out.
+ * </p>
+ * <p>
+ *     The trade off is that each caller waits up to <tt>maximumDelay</tt> longer, but when the batch call costs
+ *     about as much as a single call, throughput goes up by about the batch size, and under load the batches fill
+ *     up well before the delay.
+ * </p>
+ * @param <V> type of result
+ */
+public class BatchLoader<V> {
+
+    class Batch {
+        final long[] keys = new long[maximumSize];
+        final Condition closed = lock.newCondition();
+        final CompletableFuture<List<V>> results = new CompletableFuture<>();
+        int size;
+    }
+
+    final int maximumSize;
+    final long maximumDelay;
+    final Function<long[], List<V>> batchFunction;
+    final ReentrantLock lock = new ReentrantLock();
+    final AtomicLong loads = new AtomicLong();
+    final AtomicLong batches = new AtomicLong();
+    Batch open; // guarded by lock
+
+    /**
+     * @param maximumSize most keys in a batch
+     * @param maximumDelay longest to wait for a batch to fill up
+     * @param batchFunction to call with the keys, returning a result for each key, in the same order
+     */
+    public BatchLoader(int maximumSize, Duration maximumDelay, Function<long[], List<V>> batchFunction) {
+        if (maximumSize < 1) throw new IllegalArgumentException("maximumSize must be positive");
+        this.maximumSize = maximumSize;
+        this.maximumDelay = maximumDelay.toNanos();
+        this.batchFunction = batchFunction;
+    }
+
+    /**
+     * Load <tt>key</tt> as part of a batch.
+     * @param key to load
+     * @return result for <tt>key</tt>
+     */
+    public V load(long key) {
+        loads.incrementAndGet();
+        Batch batch;
+        int index;
+        boolean leader;
+        lock.lock();
+        try {
+            leader = open == null;
+            if (leader) open = new Batch();
+            batch = open;
+            index = batch.size++;
+            batch.keys[index] = key;
+            if (batch.size == maximumSize) {
+                open = null;
+                batch.closed.signal();
+            }
+            else if (leader) {
+                var remaining = maximumDelay;
+                while (open == batch && remaining > 0) {
+                    try {
+                        remaining = batch.closed.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        // Go with what we have, and let the caller see the interrupt
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (open == batch) open = null;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        if (leader) {
+            batches.incrementAndGet();
+            try {
+                // Once closed, the batch is no longer written, and the lock hand off makes the keys visible
+                var results = batchFunction.apply(Arrays.copyOf(batch.keys, batch.size));
+                if (results.size() != batch.size)
+                    throw new IllegalStateException("expected " + batch.size + " results, got " + results.size());
+                batch.results.complete(results);
+            } catch (Throwable t) {
+                batch.results.completeExceptionally(t);
+                throw t;
+            }
+        }
+
+        try {
+            return batch.results.join().get(index);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            if (e.getCause() instanceof Error cause) throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * @return keys loaded
+     */
+    public long loads() {
+        return loads.get();
+    }
+
+    /**
+     * @return batch calls made
+     */
+    public long batches() {
+        return batches.get();
+    }
+
+    /**
+     * @return average number of keys per batch call
+     */
+    public double averageBatchSize() {
+        var batches = this.batches.get();
+        return batches == 0 ? 0.0 : (double) loads.get() / batches;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchLoader[maximum size = %d, maximum delay = %.3f ms, loads = %d, batches = %d, average batch size = %.1f]",
+                maximumSize, maximumDelay / 1e6, loads.get(), batches.get(), averageBatchSize());
+    }
+}
@@ -0,0 +1,86 @@
+package net.kolotyluk.loom;
+
+import jdk.incubator.concurrent.StructuredTaskScope;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * <h1>Best Result Scope</h1>
+ * <p>
+ *     Sometimes the replicas do not give the same answer, such as price quotes, or search results of varying
+ *     quality, and we want the best answer we can get within a latency budget. This scope keeps only the best result
+ *     so far, by <tt>comparator</tt>, and {@link #joinBest(Instant)} returns it when every subtask has completed or
+ *     the deadline passes, whichever comes first, cancelling any stragglers.
+ * </p>
+ * <pre>
+ * try (var scope = new BestResultScope&lt;Quote&gt;(Comparator.comparing(Quote::price).reversed(), virtualThreadFactory)) {
+ *     for (var supplier : suppliers) scope.fork(() -> supplier.quote(item));
+ *     var best = scope.joinBest(Instant.now().plusMillis(20));
+ * }
+ * </pre>
+ * <p>
+ *     With a <tt>goodEnough</tt> predicate, the scope shuts down as soon as any result satisfies it, without
+ *     waiting for the deadline.
+ * </p>
+ * @param <T> type of subtask results
+ * @see QuorumScope
+ */
+public class BestResultScope<T> extends StructuredTaskScope<T> {
+
+    final Comparator<? super T> comparator;
+    final Predicate<? super T> goodEnough;
+    final AtomicReference<T> best = new AtomicReference<>();
+
+    /**
+     * @param comparator where greater is better
+     * @param threadFactory to create the subtask threads
+     */
+    public BestResultScope(Comparator<? super T> comparator, ThreadFactory threadFactory) {
+        this(comparator, result -> false, threadFactory);
+    }
+
+    /**
+     * @param comparator where greater is better
+     * @param goodEnough result at which to stop looking
+     * @param threadFactory to create the subtask threads
+     */
+    public BestResultScope(Comparator<? super T> comparator, Predicate<? super T> goodEnough, ThreadFactory threadFactory) {
+        super(null, threadFactory);
+        this.comparator = comparator;
+        this.goodEnough = goodEnough;
+    }
+
+    @Override
+    protected void handleComplete(Future<T> future) {
+        if (future.state() != Future.State.SUCCESS) return;
+        var result = future.resultNow();
+        if (result == null) return;
+        var current = best.get();
+        while ((current == null || comparator.compare(result, current) > 0) && !best.compareAndSet(current, result))
+            current = best.get();
+        if (goodEnough.test(result)) shutdown();
+    }
+
+    /**
+     * Wait for every subtask, a good enough result, or the deadline, whichever comes first.
+     * @param deadline to stop waiting
+     * @return best result, or empty if none succeeded in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Optional<T> joinBest(Instant deadline) throws InterruptedException {
+        try {
+            joinUntil(deadline);
+        } catch (TimeoutException e) {
+            shutdown();
+            join();
+        }
+        return Optional.ofNullable(best.get());
+    }
+}
@@ -0,0 +1,112 @@
+package net.kolotyluk.loom;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>Bulkhead</h1>
+ * <p>
+ *     Like the watertight compartments of a ship, a bulkhead keeps one failing dependency from sinking everything.
+ *     With Platform Threads, the size of the thread pool was a bulkhead, whether we wanted one or not, but with a
+ *     Virtual Thread per task there is no limit, so when a dependency slows down, every task calling it piles up,
+ *     parked, until we run out of memory.
+ * </p>
+ * <pre>
+ * var bulkhead = new Bulkhead("downstream", 100, Duration.ZERO);
+ * var guarded = bulkhead.decorate(() -> downstream.call(value));
+ * </pre>
+ * <p>
+ *     A bulkhead per dependency allows at most <tt>maximumConcurrent</tt> calls to it at once. A call that cannot
+ *     get in within <tt>maximumWait</tt> fails with {@link Full}, so the caller can fall back, or give up, instead of
+ *     parking. Unlike a {@link ConcurrencyLimiter}, the limit is fixed, which is simpler, and a good guard against
+ *     the dependency failing, rather than for finding its best concurrency.
+ * </p>
+ * @see CircuitBreaker
+ */
+public class Bulkhead {
+
+    /**
+     * Thrown instead of making the call, when the bulkhead is full.
+     */
+    public static class Full extends RuntimeException {
+        public Full(String message) {
+            super(message, null, false, false); // no stack trace, there will be lots of these
+        }
+    }
+
+    final String name;
+    final int maximumConcurrent;
+    final long maximumWait;
+    final Semaphore permits;
+    final ConcurrencyGauge gauge = new ConcurrencyGauge();
+    final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param name of the dependency
+     * @param maximumConcurrent most calls at once
+     * @param maximumWait longest to wait to get in, or zero to not wait at all
+     */
+    public Bulkhead(String name, int maximumConcurrent, Duration maximumWait) {
+        if (maximumConcurrent < 1) throw new IllegalArgumentException("maximumConcurrent must be positive");
+        this.name = name;
+        this.maximumConcurrent = maximumConcurrent;
+        this.maximumWait = maximumWait.toNanos();
+        this.permits = new Semaphore(maximumConcurrent);
+    }
+
+    /**
+     * Make the call, if there is room.
+     * @param callable to call
+     * @return result of the call
+     * @param <T> type of result
+     * @throws Full if there was no room within the maximum wait
+     * @throws Exception from the call
+     */
+    public <T> T call(Callable<T> callable) throws Exception {
+        var acquired = maximumWait == 0 ? permits.tryAcquire() : permits.tryAcquire(maximumWait, TimeUnit.NANOSECONDS);
+        if (!acquired) {
+            rejected.incrementAndGet();
+            throw new Full("bulkhead " + name + " is full");
+        }
+        gauge.enter();
+        try {
+            return callable.call();
+        }
+        finally {
+            gauge.exit();
+            permits.release();
+        }
+    }
+
+    /**
+     * @param callable to guard
+     * @return callable that calls through this bulkhead
+     * @param <T> type of result
+     */
+    public <T> Callable<T> decorate(Callable<T> callable) {
+        return () -> call(callable);
+    }
+
+    /**
+     * @return calls rejected because the bulkhead was full
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return most calls in the bulkhead at once
+     */
+    public long maximum() {
+        return gauge.maximum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Bulkhead[name = %s, maximum concurrent = %d, in flight = %d, maximum = %d, rejected = %d]",
+                name, maximumConcurrent, maximumConcurrent - permits.availablePermits(), gauge.maximum(), rejected.get());
+    }
+}
@@ -0,0 +1,325 @@
+package net.kolotyluk.loom;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <h1>Carrier Watchdog</h1>
+ * <p>
+ *     Virtual Threads are only as responsive as their Carrier Threads. A Virtual Thread that computes for a long
+ *     time, or pins while it blocks, keeps its carrier from running anything else, and once every carrier is
+ *     taken, every other Virtual Thread waits, see {@link CpuOffload} and {@link Lag#sleepPinned(Object)}. None of
+ *     that shows up in the results of an experiment, only in its timings, so we need a way to see it.
+ * </p>
+ * <pre>
+ * try (var watchdog = new CarrierWatchdog(Duration.ofMillis(10), Duration.ofMillis(50), true)) {
+ *     . . .
+ *     runExperiment();
+ *     . . .
+ *     System.out.println(watchdog.report());
+ * }
+ * </pre>
+ * <p>
+ *     Or, more simply, {@link #watch(String, Runnable)}. Every <tt>interval</tt>, a Platform Thread
+ * </p>
+ * <ul>
+ *     <li>
+ *         Reads the CPU time of each Carrier Thread, so a carrier that used nearly all of the time since the last
+ *         sample was busy for all of it. The sum over all carriers, over that time, is their <em>occupancy</em>.
+ *     </li>
+ *     <li>
+ *         Flags any carrier that stays busy for longer than <tt>threshold</tt> as a {@link Monopoly}. We cannot see
+ *         which Virtual Thread is mounted from outside, but a carrier that never rests for that long is either
+ *         running one long task, or is so oversubscribed that it makes no difference.
+ *     </li>
+ *     <li>
+ *         Starts a trivial probe Virtual Thread, and records how long it takes to get a carrier. This is the
+ *         <em>scheduling delay</em> every Virtual Thread is paying at that moment, and it is the most direct
+ *         measure of starvation.
+ *     </li>
+ * </ul>
+ * <p>
+ *     With <tt>profile</tt> set, a JFR {@link RecordingStream} also samples what Virtual Threads are running, so a
+ *     Virtual Thread that is seen running in consecutive samples for longer than <tt>threshold</tt> is reported as a
+ *     {@link Monopoly} by name and the method at the top of its stack, and <tt>jdk.VirtualThreadPinned</tt> events
+ *     are counted. JFR delivers events in batches about a second apart, so short runs may not see them.
+ * </p>
+ * <p>
+ *     Note: Carrier Threads are found by their class, <tt>jdk.internal.misc.CarrierThread</tt>, which is an
+ *     implementation detail of the JDK that may change.
+ * </p>
+ */
+public class CarrierWatchdog implements AutoCloseable {
+
+    static final String carrierClassName = "jdk.internal.misc.CarrierThread";
+
+    /**
+     * A carrier that used at least this fraction of the time since the last sample on the CPU was busy for it.
+     */
+    static final double busyRatio = 0.9;
+
+    /**
+     * Look for new carriers every this many intervals, as they are started lazily.
+     */
+    static final int discoveryInterval = 100;
+
+    static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * @param time since the watchdog started
+     * @param carriers number of Carrier Threads
+     * @param occupancy fraction of the carriers' time spent on the CPU during the interval
+     * @param schedulingDelay how long the probe Virtual Thread waited for a carrier, or has waited so far
+     */
+    public record Occupancy(Duration time, int carriers, double occupancy, Duration schedulingDelay) {
+        @Override
+        public String toString() {
+            return String.format("%6d ms: carriers = %d, occupancy = %5.1f%%, scheduling delay = %.3f ms",
+                    time.toMillis(), carriers, occupancy * 100, schedulingDelay.toNanos() / 1e6);
+        }
+    }
+
+    /**
+     * @param thread carrier, or virtual thread when profiling
+     * @param where top of the stack when profiling, otherwise empty
+     * @param start since the watchdog started
+     * @param length how long it kept the CPU
+     */
+    public record Monopoly(String thread, String where, Duration start, Duration length) {
+        @Override
+        public String toString() {
+            return String.format("%s%s busy for %d ms from %d ms",
+                    thread, where.isEmpty() ? "" : " in " + where, length.toMillis(), start.toMillis());
+        }
+    }
+
+    /**
+     * @param occupancy over time
+     * @param monopolies carriers or virtual threads busy for longer than the threshold
+     * @param pinned number of <tt>jdk.VirtualThreadPinned</tt> events, when profiling
+     */
+    public record Report(List<Occupancy> occupancy, List<Monopoly> monopolies, long pinned) {
+
+        /**
+         * @return the longest any probe waited for a carrier
+         */
+        public Duration maximumSchedulingDelay() {
+            return occupancy.stream().map(Occupancy::schedulingDelay).max(Duration::compareTo).orElse(Duration.ZERO);
+        }
+
+        /**
+         * @return mean occupancy over the whole run
+         */
+        public double meanOccupancy() {
+            return occupancy.stream().mapToDouble(Occupancy::occupancy).average().orElse(0.0);
+        }
+
+        @Override
+        public String toString() {
+            var builder = new StringBuilder(String.format(
+                    "CarrierWatchdog: samples = %d, mean occupancy = %.1f%%, maximum scheduling delay = %.3f ms, monopolies = %d, pinned = %d",
+                    occupancy.size(), meanOccupancy() * 100, maximumSchedulingDelay().toNanos() / 1e6, monopolies.size(), pinned));
+            // About 10 lines of the timeline is enough to see the shape of it
+            var step = Math.max(1, occupancy.size() / 10);
+            for (int index = 0; index < occupancy.size(); index += step) builder.append("\n    ").append(occupancy.get(index));
+            monopolies.stream().limit(10).forEach(monopoly -> builder.append("\n    ").append(monopoly));
+            if (monopolies.size() > 10) builder.append("\n    . . .");
+            return builder.toString();
+        }
+    }
+
+    final Duration interval;
+    final Duration threshold;
+    final long startTime = System.nanoTime();
+    final long startEpoch = System.currentTimeMillis() * 1_000_000L;
+    final Thread sampler;
+    final RecordingStream profiler;
+
+    // guarded by this
+    final List<Occupancy> occupancy = new ArrayList<>();
+    final List<Monopoly> monopolies = new ArrayList<>();
+    long pinned;
+
+    // only used by the sampler thread
+    final Map<Thread, long[]> carriers = new HashMap<>();  // carrier -> {last cpu time, busy since, or -1}
+
+    // guarded by this, as close() reads them once the profiler is done with them
+    final Map<Long, long[]> running = new HashMap<>();  // virtual thread id -> {first seen, last seen}
+    final Map<Long, String> where = new HashMap<>();
+
+    volatile long probeStart;
+    volatile long probeDelay = -1;
+
+    /**
+     * Start watching the carriers.
+     * @param interval between samples
+     * @param threshold how long a carrier, or virtual thread, can stay busy before it is flagged
+     * @param profile also use JFR to identify the virtual threads, and count pinning
+     */
+    public CarrierWatchdog(Duration interval, Duration threshold, boolean profile) {
+        this.interval = interval;
+        this.threshold = threshold;
+        this.profiler = profile ? profile() : null;
+        this.sampler = Thread.ofPlatform().daemon().name("CarrierWatchdog").start(this::sample);
+    }
+
+    /**
+     * Watch every 10 ms, flagging carriers busy for more than 50 ms, without JFR.
+     */
+    public CarrierWatchdog() {
+        this(Duration.ofMillis(10), Duration.ofMillis(50), false);
+    }
+
+    /**
+     * Run an experiment under a default watchdog, and print its report afterwards.
+     * <pre>
+     * CarrierWatchdog.watch("pinning", () -> pinning(limit, 0.1));
+     * </pre>
+     * @param name of the experiment, for the report
+     * @param experiment to run
+     */
+    public static void watch(String name, Runnable experiment) {
+        var watchdog = new CarrierWatchdog();
+        try {
+            experiment.run();
+        }
+        finally {
+            watchdog.close();
+            System.out.println(name + ": " + watchdog.report());
+        }
+    }
+
+    long now() {
+        return System.nanoTime() - startTime;
+    }
+
+    void sample() {
+        try {
+            var last = now();
+            for (int count = 0; !Thread.currentThread().isInterrupted(); count++) {
+                if (carriers.isEmpty() || count % discoveryInterval == 0) discoverCarriers();
+                var busy = 0L;
+                var now = now();
+                // Sleep often runs over, so measure how long it has really been, rather than assume the interval
+                var elapsed = Math.max(1, now - last);
+                last = now;
+                for (var entry : carriers.entrySet()) {
+                    var state = entry.getValue();
+                    var cpuTime = threadMXBean.getThreadCpuTime(entry.getKey().threadId());
+                    if (cpuTime < 0) continue; // terminated
+                    var delta = cpuTime - state[0];
+                    state[0] = cpuTime;
+                    busy += delta;
+                    if (delta >= elapsed * busyRatio) {
+                        if (state[1] < 0) state[1] = now - delta;
+                    }
+                    else if (state[1] >= 0) {
+                        flag(entry.getKey().getName(), "", state[1], now);
+                        state[1] = -1;
+                    }
+                }
+                var delay = probeDelay >= 0 ? probeDelay : probeStart == 0 ? 0 : System.nanoTime() - probeStart;
+                var ratio = carriers.isEmpty() ? 0.0 : Math.min(1.0, (double) busy / (elapsed * carriers.size()));
+                synchronized (this) {
+                    occupancy.add(new Occupancy(Duration.ofNanos(now), carriers.size(), ratio, Duration.ofNanos(Math.max(0, delay))));
+                }
+                // Only probe again once the last probe has run, otherwise we would just add to the backlog
+                if (probeDelay >= 0 || probeStart == 0) {
+                    probeDelay = -1;
+                    var start = System.nanoTime();
+                    probeStart = start;
+                    Thread.ofVirtual().name("CarrierWatchdog.probe").start(() -> probeDelay = System.nanoTime() - start);
+                }
+                Thread.sleep(interval);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+        // Anything still busy at the end
+        var now = now();
+        carriers.forEach((carrier, state) -> { if (state[1] >= 0) flag(carrier.getName(), "", state[1], now); });
+    }
+
+    void discoverCarriers() {
+        for (var thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getClass().getName().equals(carrierClassName) && !carriers.containsKey(thread)) {
+                carriers.put(thread, new long[] {threadMXBean.getThreadCpuTime(thread.threadId()), -1});
+            }
+        }
+    }
+
+    void flag(String thread, String where, long start, long end) {
+        if (end - start <= threshold.toNanos()) return;
+        synchronized (this) {
+            monopolies.add(new Monopoly(thread, where, Duration.ofNanos(start), Duration.ofNanos(end - start)));
+        }
+    }
+
+    RecordingStream profile() {
+        var stream = new RecordingStream();
+        stream.enable("jdk.ExecutionSample").withPeriod(interval);
+        stream.enable("jdk.VirtualThreadPinned").withThreshold(threshold);
+        stream.onEvent("jdk.ExecutionSample", this::onExecutionSample);
+        stream.onEvent("jdk.VirtualThreadPinned", event -> { synchronized (this) { pinned++; } });
+        stream.startAsync();
+        return stream;
+    }
+
+    synchronized void onExecutionSample(RecordedEvent event) {
+        var thread = event.getThread("sampledThread");
+        if (thread == null || !thread.isVirtual()) return;
+        var instant = event.getStartTime();
+        var time = instant.getEpochSecond() * 1_000_000_000L + instant.getNano() - startEpoch;
+        var id = thread.getJavaThreadId();
+        var stint = running.get(id);
+        // A gap of more than two intervals means it stopped running in between
+        if (stint != null && time - stint[1] > 2 * interval.toNanos()) {
+            flag("VirtualThread#" + id, where.getOrDefault(id, ""), stint[0], stint[1]);
+            stint = null;
+        }
+        if (stint == null) running.put(id, new long[] {time, time});
+        else stint[1] = time;
+        var frames = event.getStackTrace() == null ? null : event.getStackTrace().getFrames();
+        if (frames != null && !frames.isEmpty()) {
+            var method = frames.get(0).getMethod();
+            where.put(id, method.getType().getName() + "." + method.getName());
+        }
+    }
+
+    /**
+     * @return what has been seen so far
+     */
+    public synchronized Report report() {
+        return new Report(List.copyOf(occupancy), List.copyOf(monopolies), pinned);
+    }
+
+    @Override
+    public void close() {
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (profiler != null) {
+            profiler.close();
+            try {
+                // close() does not wait for the handler thread, which may still be in onExecutionSample
+                profiler.awaitTermination();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                running.forEach((id, stint) -> flag("VirtualThread#" + id, where.getOrDefault(id, ""), stint[0], stint[1]));
+            }
+        }
+    }
+}
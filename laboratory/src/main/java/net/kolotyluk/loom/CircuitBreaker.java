@@ -0,0 +1,265 @@
+package net.kolotyluk.loom;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <h1>Circuit Breaker</h1>
+ * <p>
+ *     A Virtual Thread is cheap, but not free, so when a dependency stops answering, and every call to it parks a
+ *     thread until it times out, a million callers means a million parked threads, and their stacks, on the heap.
+ *     A {@link RetryExecutor} only makes that worse. A circuit breaker, from Michael Nygard's <em>Release It!</em>,
+ *     watches the outcomes of recent calls, and once too many fail, or are too slow, it <em>opens</em>, failing
+ *     calls right away without making them, until the dependency has had a chance to recover.
+ * </p>
+ * <pre>
+ * var breaker = new CircuitBreaker(100, 10, 0.5, 0.5, Duration.ofMillis(100), Duration.ofSeconds(1), 5);
+ * var guarded = breaker.decorate(() -> downstream.call(value));
+ * . . .
+ * System.out.println(breaker);
+ * </pre>
+ * <h2>States</h2>
+ * <ul>
+ *     <li><b>CLOSED</b> calls are made, and their outcomes recorded in a sliding window of the last
+ *     <tt>windowSize</tt> calls. Once there are at least <tt>minimumCalls</tt> outcomes, and the failure rate, or
+ *     slow call rate, reaches its threshold, the breaker opens.</li>
+ *     <li><b>OPEN</b> calls fail right away with {@link Open}, until <tt>openDuration</tt> has passed.</li>
+ *     <li><b>HALF_OPEN</b> only <tt>trialCalls</tt> calls are made, and the rest fail with {@link Open}. If they all
+ *     succeed in time, the breaker closes, with a new window, otherwise it opens again.</li>
+ * </ul>
+ * <p>
+ *     Note: there are no locks. The state is an immutable {@link Status}, replaced by compare and set, and the
+ *     window is a ring of outcomes with running counts, where each call claims the next slot, and adjusts the counts
+ *     by the difference between the outcome it overwrites and its own. On closing, the whole window is replaced, so
+ *     late outcomes from before the trial go to the old window, and are forgotten. Likewise, each half open status
+ *     carries its own trial permits and successes, created before the status is published, so no caller can see
+ *     the new state with the permits of an old trial, and late outcomes of an old trial are ignored.
+ * </p>
+ * @see Bulkhead
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * @param state of the breaker
+     * @param since when it entered the state, in {@link System#nanoTime()}
+     * @param trial permits and successes, while half open, otherwise null
+     */
+    record Status(State state, long since, Trial trial) {}
+
+    /**
+     * The counts of one half open period, which belong to its {@link Status}, not to the breaker.
+     */
+    static class Trial {
+        final AtomicInteger permits;
+        final AtomicInteger successes = new AtomicInteger();
+
+        Trial(int permits) {
+            this.permits = new AtomicInteger(permits);
+        }
+    }
+
+    /**
+     * Thrown instead of making the call, while the breaker is open.
+     */
+    public static class Open extends RuntimeException {
+        public Open(String message) {
+            super(message, null, false, false); // no stack trace, there will be lots of these
+        }
+    }
+
+    // Outcomes in the window
+    static final int empty = 0;
+    static final int success = 1;
+    static final int failure = 2;
+    static final int slow = 3;
+    static final int slowFailure = 4;
+
+    class Window {
+        final AtomicIntegerArray outcomes = new AtomicIntegerArray(windowSize);
+        final AtomicLong next = new AtomicLong();
+        final AtomicInteger recorded = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger slowCalls = new AtomicInteger();
+
+        void record(int outcome) {
+            var previous = outcomes.getAndSet((int) (next.getAndIncrement() % windowSize), outcome);
+            if (previous == empty) recorded.incrementAndGet();
+            failures.addAndGet(isFailure(outcome) - isFailure(previous));
+            slowCalls.addAndGet(isSlow(outcome) - isSlow(previous));
+        }
+
+        static int isFailure(int outcome) {
+            return outcome == failure || outcome == slowFailure ? 1 : 0;
+        }
+
+        static int isSlow(int outcome) {
+            return outcome == slow || outcome == slowFailure ? 1 : 0;
+        }
+
+        boolean shouldOpen() {
+            var recorded = this.recorded.get();
+            if (recorded < minimumCalls) return false;
+            return failures.get() >= failureRateThreshold * recorded || slowCalls.get() >= slowCallRateThreshold * recorded;
+        }
+    }
+
+    final int windowSize;
+    final int minimumCalls;
+    final double failureRateThreshold;
+    final double slowCallRateThreshold;
+    final long slowCallDuration;
+    final long openDuration;
+    final int trialCalls;
+
+    final AtomicReference<Status> status = new AtomicReference<>(new Status(State.CLOSED, System.nanoTime(), null));
+    final AtomicReference<Window> window;
+
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong opened = new AtomicLong();
+
+    /**
+     * @param windowSize number of recent calls to judge by
+     * @param minimumCalls fewest calls in the window before judging
+     * @param failureRateThreshold fraction of failed calls at which to open
+     * @param slowCallRateThreshold fraction of slow calls at which to open
+     * @param slowCallDuration at which a call is slow, whether it succeeds or not
+     * @param openDuration how long to stay open before trying again
+     * @param trialCalls number of calls to try when half open
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, double slowCallRateThreshold,
+                          Duration slowCallDuration, Duration openDuration, int trialCalls) {
+        if (windowSize < 1) throw new IllegalArgumentException("windowSize must be positive");
+        if (minimumCalls < 1 || minimumCalls > windowSize) throw new IllegalArgumentException("minimumCalls must be between 1 and windowSize");
+        if (trialCalls < 1) throw new IllegalArgumentException("trialCalls must be positive");
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDuration = slowCallDuration.toNanos();
+        this.openDuration = openDuration.toNanos();
+        this.trialCalls = trialCalls;
+        this.window = new AtomicReference<>(new Window());
+    }
+
+    /**
+     * Make the call, unless the breaker is open.
+     * @param callable to call
+     * @return result of the call
+     * @param <T> type of result
+     * @throws Open if the breaker is open
+     * @throws Exception from the call
+     */
+    public <T> T call(Callable<T> callable) throws Exception {
+        calls.incrementAndGet();
+        var trial = permit();
+        var window = this.window.get();
+        var startTime = System.nanoTime();
+        var failed = true;
+        try {
+            var result = callable.call();
+            failed = false;
+            return result;
+        }
+        finally {
+            var isSlow = System.nanoTime() - startTime >= slowCallDuration;
+            var outcome = failed ? (isSlow ? slowFailure : failure) : (isSlow ? slow : success);
+            if (trial != null) trialOutcome(trial, outcome == success);
+            else {
+                window.record(outcome);
+                if (window.shouldOpen()) open(State.CLOSED);
+            }
+        }
+    }
+
+    /**
+     * @param callable to guard
+     * @return callable that calls through this breaker
+     * @param <T> type of result
+     */
+    public <T> Callable<T> decorate(Callable<T> callable) {
+        return () -> call(callable);
+    }
+
+    /**
+     * @return the trial this call is part of, or null if the breaker is closed
+     * @throws Open if the call is not permitted
+     */
+    Trial permit() {
+        while (true) {
+            var current = status.get();
+            switch (current.state()) {
+                case CLOSED -> {
+                    return null;
+                }
+                case OPEN -> {
+                    if (System.nanoTime() - current.since() < openDuration) throw reject();
+                    // The trial is ready before anyone can see the new status, and if we lose the race, we take the winner's
+                    status.compareAndSet(current, new Status(State.HALF_OPEN, System.nanoTime(), new Trial(trialCalls)));
+                }
+                case HALF_OPEN -> {
+                    // Claim a trial permit, without going below zero
+                    var trial = current.trial();
+                    var permits = trial.permits.get();
+                    if (permits <= 0) throw reject();
+                    if (trial.permits.compareAndSet(permits, permits - 1)) return trial;
+                }
+            }
+        }
+    }
+
+    Open reject() {
+        rejected.incrementAndGet();
+        return new Open("circuit breaker is open");
+    }
+
+    void trialOutcome(Trial trial, boolean succeeded) {
+        var current = status.get();
+        // An outcome from an earlier trial, long since decided
+        if (current.trial() != trial) return;
+        if (!succeeded)
+            open(State.HALF_OPEN);
+        else if (trial.successes.incrementAndGet() == trialCalls && status.compareAndSet(current, new Status(State.CLOSED, System.nanoTime(), null)))
+            window.set(new Window());
+    }
+
+    void open(State from) {
+        var current = status.get();
+        if (current.state() == from && status.compareAndSet(current, new Status(State.OPEN, System.nanoTime(), null)))
+            opened.incrementAndGet();
+    }
+
+    /**
+     * @return current state
+     */
+    public State state() {
+        return status.get().state();
+    }
+
+    /**
+     * @return calls rejected while open
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return number of times the breaker opened
+     */
+    public long opened() {
+        return opened.get();
+    }
+
+    @Override
+    public String toString() {
+        var window = this.window.get();
+        return String.format("CircuitBreaker[state = %s, calls = %d, rejected = %d, opened = %d, window failures = %d, slow = %d of %d]",
+                state(), calls.get(), rejected.get(), opened.get(), window.failures.get(), window.slowCalls.get(), window.recorded.get());
+    }
+}
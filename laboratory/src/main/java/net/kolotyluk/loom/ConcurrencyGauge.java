@@ -0,0 +1,221 @@
+package net.kolotyluk.loom;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>Concurrency Gauge</h1>
+ * <p>
+ *     Several experiments want to know how many tasks are in flight at once, and the <em>high water mark</em>. The
+ *     obvious way to do that is an {@link AtomicLong} incremented and decremented by every task, plus a
+ *     compare-and-set loop to raise the maximum, but with millions of tasks on every core hammering the same two
+ *     adjacent counters, the counters themselves become a point of contention that distorts what we are measuring.
+ * </p>
+ * <pre>
+ * var gauge = new ConcurrencyGauge();
+ * . . .
+ * gauge.enter();
+ * try {
+ *     return doSomething();
+ * }
+ * finally {
+ *     gauge.exit();
+ * }
+ * . . .
+ * System.out.println("maximum = " + gauge.maximum());
+ * </pre>
+ * <h2>Striping</h2>
+ * <p>
+ *     Like {@link java.util.concurrent.atomic.LongAdder}, the count is striped over a number of cells, where each
+ *     thread uses the cell chosen by its thread id, so a task enters and exits on the same cell, and different
+ *     threads mostly use different cells. Each cell is padded out to its own cache lines, which is what
+ *     <tt>@jdk.internal.vm.annotation.Contended</tt> does for <tt>LongAdder</tt>, but that annotation needs
+ *     <tt>--add-exports</tt> and <tt>-XX:-RestrictContended</tt> outside the JDK, so we pad by hand.
+ * </p>
+ * <h2>Approximate Maximum</h2>
+ * <p>
+ *     Summing the cells on every {@link #enter()} would put us back where we started, so the sum is only taken when
+ *     a cell reaches a new high of its own, which tracks the ramp up closely, or on a random one in
+ *     {@value #SAMPLE_RATE} entries otherwise. As a result {@link #maximum()} can miss brief peaks.
+ * </p>
+ * <p>
+ *     It can also overshoot, because the cells are summed one at a time, not as a snapshot. If one task exits on
+ *     a cell that has already been read, and another enters on a cell that has not, the sum counts both, a level
+ *     that never happened. So both {@link #inFlight()} and {@link #maximum()} are approximate in both directions,
+ *     off by at most the number of tasks that enter or exit during a sum, which is fine for a gauge, but not for
+ *     enforcing a limit.
+ * </p>
+ * <h2>Time Series</h2>
+ * <p>
+ *     {@link #sample(Duration)} starts recording the number of tasks in flight at a regular interval, which shows
+ *     how the level of concurrency changes over the life of an experiment, not just its peak.
+ * </p>
+ */
+public class ConcurrencyGauge {
+
+    static final int SAMPLE_RATE = 16;
+
+    static final VarHandle IN_FLIGHT;
+
+    static {
+        try {
+            IN_FLIGHT = MethodHandles.lookup().findVarHandle(Value.class, "inFlight", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Padding via inheritance, because the JVM does not reorder fields across classes in a hierarchy
+
+    static class LeftPadding {
+        long p01, p02, p03, p04, p05, p06, p07, p08, p09, p10, p11, p12, p13, p14, p15;
+    }
+
+    static class Value extends LeftPadding {
+        volatile long inFlight;
+        volatile long peak;
+    }
+
+    static final class Cell extends Value {
+        long p17, p18, p19, p20, p21, p22, p23, p24, p25, p26, p27, p28, p29, p30, p31;
+    }
+
+    final Cell[] cells;
+    final int mask;
+    final AtomicLong maximum = new AtomicLong();
+
+    /**
+     * Create a gauge with enough cells for the available cores.
+     */
+    public ConcurrencyGauge() {
+        this(Context.availableProcessors * 2);
+    }
+
+    /**
+     * @param stripes minimum number of cells, rounded up to a power of 2
+     */
+    public ConcurrencyGauge(int stripes) {
+        var size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        cells = new Cell[size];
+        for (int i = 0; i < size; i++) cells[i] = new Cell();
+        mask = size - 1;
+    }
+
+    Cell cell() {
+        var id = Thread.currentThread().threadId();
+        return cells[(int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask];
+    }
+
+    /**
+     * A task has started.
+     */
+    public void enter() {
+        var cell = cell();
+        var count = (long) IN_FLIGHT.getAndAdd(cell, 1L) + 1;
+        if (count > cell.peak) {
+            cell.peak = count;
+            raiseMaximum(inFlight());
+        }
+        else if (ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) {
+            raiseMaximum(inFlight());
+        }
+    }
+
+    /**
+     * A task has finished, call from the same thread as {@link #enter()}.
+     */
+    public void exit() {
+        IN_FLIGHT.getAndAdd(cell(), -1L);
+    }
+
+    void raiseMaximum(long count) {
+        // Only contended while the maximum is rising
+        var current = maximum.get();
+        while (count > current && !maximum.compareAndSet(current, count)) current = maximum.get();
+    }
+
+    /**
+     * @return approximate number of tasks in flight now
+     */
+    public long inFlight() {
+        var sum = 0L;
+        for (var cell : cells) sum += cell.inFlight;
+        return sum;
+    }
+
+    /**
+     * @return approximate maximum number of tasks in flight at once
+     */
+    public long maximum() {
+        raiseMaximum(inFlight());
+        return maximum.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyGauge[inFlight = " + inFlight() + ", maximum = " + maximum() + "]";
+    }
+
+    /**
+     * Start recording the number of tasks in flight every <tt>interval</tt>, until the sampler is closed.
+     * @param interval between samples
+     * @return the running sampler
+     */
+    public Sampler sample(Duration interval) {
+        return new Sampler(interval);
+    }
+
+    /**
+     * @param time since sampling started
+     * @param inFlight number of tasks in flight
+     */
+    public record Sample(Duration time, long inFlight) {}
+
+    public class Sampler implements AutoCloseable {
+        final List<Sample> samples = new ArrayList<>();
+        final Thread thread;
+
+        Sampler(Duration interval) {
+            var startTime = System.nanoTime();
+            // A platform thread, so that sampling keeps time even if all the carrier threads are busy
+            thread = Thread.ofPlatform().daemon().name("ConcurrencyGauge.Sampler").start(() -> {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        var inFlight = inFlight();
+                        raiseMaximum(inFlight);
+                        synchronized (samples) {
+                            samples.add(new Sample(Duration.ofNanos(System.nanoTime() - startTime), inFlight));
+                        }
+                        Thread.sleep(interval);
+                    }
+                } catch (InterruptedException e) {
+                    // closed
+                }
+            });
+        }
+
+        /**
+         * @return samples so far
+         */
+        public List<Sample> samples() {
+            synchronized (samples) {
+                return List.copyOf(samples);
+            }
+        }
+
+        @Override
+        public void close() {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package net.kolotyluk.loom;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <h1>Adaptive Concurrency Limit</h1>
+ * <p>
+ *     With Virtual Threads it is easy to fork a million tasks at once, but if they all call the same
+ *     {@link Downstream}, most of them just wait in its queue, using memory, and adding latency, without adding any
+ *     throughput. A fixed pool of 12 threads has the opposite problem, it may leave capacity unused. The right
+ *     level of concurrency depends on the downstream, and it can change while we run.
+ * </p>
+ * <p>
+ *     This limiter finds it by watching round trip times, in the style of the <tt>VegasLimit</tt> of
+ *     <a href="https://github.com/Netflix/concurrency-limits">Netflix concurrency-limits</a>. By Little's Law, the
+ *     throughput we get with <tt>limit</tt> calls in flight is <tt>limit / rtt</tt>. If <tt>rttNoLoad</tt> is the
+ *     fastest round trip we have seen, then about
+ * </p>
+ * <pre>
+ * queue = limit &times; (1 - rttNoLoad / rtt)
+ * </pre>
+ * <p>
+ *     of those calls are not being served, only waiting, so they are not buying any throughput. The limit is
+ *     raised while that queue is small, and lowered once it gets large, so it settles just above the point where
+ *     throughput stops growing. If a call fails, the limit backs off multiplicatively, as in AIMD.
+ * </p>
+ * <p>
+ *     A single round trip is too noisy to act on, so, like their <tt>WindowedLimit</tt>, the limit is only
+ *     adjusted once per window of samples, by the average round trip of the window.
+ * </p>
+ * <pre>
+ * var limiter = new ConcurrencyLimiter();
+ * . . .
+ * var startTime = limiter.acquire(); // blocks while the limit is reached
+ * scope.fork(() -> {
+ *     var success = false;
+ *     try {
+ *         var result = callDownstream();
+ *         success = true;
+ *         return result;
+ *     }
+ *     finally {
+ *         limiter.release(startTime, success);
+ *     }
+ * });
+ * </pre>
+ * <p>
+ *     Acquire in the forking thread, before forking, so that waiting for the limit holds back the fork, rather than
+ *     forking a thread that only waits.
+ * </p>
+ * <h2>Probing</h2>
+ * <p>
+ *     If the downstream gets slower for reasons of its own, the old <tt>rttNoLoad</tt> would make it look
+ *     permanently overloaded, so every so often it is forgotten and measured again.
+ * </p>
+ * <p>
+ *     Note: every acquire and release takes a lock, which is fine for transactional tasks of a millisecond or so,
+ *     but for tiny computational tasks the limiter would cost more than the tasks.
+ * </p>
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * Forget <tt>rttNoLoad</tt> after this many windows.
+     */
+    static final int probeInterval = 30;
+
+    /**
+     * Fewest samples in a window, otherwise a window holds about one limit's worth of samples.
+     */
+    static final int minimumWindow = 10;
+
+    /**
+     * Multiplicative decrease on failure.
+     */
+    static final double backoffRatio = 0.9;
+
+    final int minimumLimit;
+    final int maximumLimit;
+    final long startTime = System.nanoTime();
+
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition available = lock.newCondition();
+
+    // guarded by lock
+    double limit;
+    int inFlight;
+    long rttNoLoad;
+    int windowsToProbe = probeInterval;
+    int windowCount;
+    long windowRtt;
+    int windowInFlight;
+    long lastRtt;
+    final List<Update> history = new ArrayList<>();
+
+    /**
+     * @param time since the limiter was created
+     * @param limit new limit
+     * @param rtt average round trip of the window that caused the change
+     */
+    public record Update(Duration time, int limit, Duration rtt) {}
+
+    /**
+     * Create a limiter starting at 20, between 1 and 10,000.
+     */
+    public ConcurrencyLimiter() {
+        this(20, 1, 10_000);
+    }
+
+    /**
+     * @param initialLimit limit to start at
+     * @param minimumLimit lowest limit allowed
+     * @param maximumLimit highest limit allowed
+     */
+    public ConcurrencyLimiter(int initialLimit, int minimumLimit, int maximumLimit) {
+        if (minimumLimit < 1 || minimumLimit > initialLimit || initialLimit > maximumLimit)
+            throw new IllegalArgumentException("require 1 <= minimumLimit <= initialLimit <= maximumLimit");
+        this.limit = initialLimit;
+        this.minimumLimit = minimumLimit;
+        this.maximumLimit = maximumLimit;
+    }
+
+    /**
+     * Wait until there is room under the limit, and take it.
+     * @return start time to pass to {@link #release(long, boolean)}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public long acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) available.await();
+            inFlight++;
+            windowInFlight = Math.max(windowInFlight, inFlight);
+        }
+        finally {
+            lock.unlock();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Give back the room taken by {@link #acquire()}, and adjust the limit by how long the call took.
+     * @param startTime as returned by {@link #acquire()}
+     * @param success false if the call failed or timed out, which backs off the limit
+     */
+    public void release(long startTime, boolean success) {
+        var rtt = Math.max(1, System.nanoTime() - startTime);
+        lock.lock();
+        try {
+            var before = (int) limit;
+            if (success) onSample(rtt); else limit = Math.max(minimumLimit, limit * backoffRatio);
+            inFlight--;
+            var after = (int) limit;
+            if (after != before) history.add(new Update(Duration.ofNanos(System.nanoTime() - this.startTime), after, Duration.ofNanos(success ? lastRtt : rtt)));
+            if (after > before) available.signalAll(); else available.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void onSample(long sample) {
+        // Single round trips are too noisy to act on, so average them over a window of about one limit's worth
+        windowRtt += sample;
+        if (++windowCount < Math.max(minimumWindow, (int) limit)) return;
+        var rtt = windowRtt / windowCount;
+        lastRtt = rtt;
+        var maximumInFlight = windowInFlight;
+        windowCount = 0;
+        windowRtt = 0;
+        windowInFlight = inFlight;
+
+        if (--windowsToProbe <= 0) {
+            rttNoLoad = 0;
+            windowsToProbe = probeInterval;
+        }
+        if (rttNoLoad == 0 || rtt < rttNoLoad) {
+            rttNoLoad = rtt;
+            return;
+        }
+
+        // If we are not using most of the limit, the latency tells us nothing about it
+        if (maximumInFlight * 2 < limit) return;
+
+        var log = Math.max(1.0, Math.log10(limit));
+        var queue = limit * (1.0 - (double) rttNoLoad / rtt);
+
+        if (queue <= log) limit += 6 * log;         // hardly any queue, grow quickly
+        else if (queue < 3 * log) limit += log;     // a little queue, grow slowly
+        else if (queue > 6 * log) limit -= log;     // too much queue, shrink
+        limit = Math.max(minimumLimit, Math.min(maximumLimit, limit));
+    }
+
+    /**
+     * @return current limit
+     */
+    public int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of calls in flight
+     */
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return every change of the limit so far, for seeing how it converges
+     */
+    public List<Update> history() {
+        lock.lock();
+        try {
+            return List.copyOf(history);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("ConcurrencyLimiter[limit = %d, inFlight = %d, rttNoLoad = %.3f ms, updates = %d]",
+                    (int) limit, inFlight, rttNoLoad / 1e6, history.size());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package net.kolotyluk.loom;
+
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * <h1>Concurrent Streams</h1>
+ * <p>
+ *     {@link java.util.stream.Stream#parallel()} is great for computational tasks, but it runs on the
+ *     {@link java.util.concurrent.ForkJoinPool#commonPool()}, with only as many threads as we have cores, so a
+ *     transactional task that blocks, such as {@link Experiment02_Throughput#doubleItTransactionally}, wastes them.
+ *     On the other hand, forking a Virtual Thread per item means leaving the Stream API behind.
+ * </p>
+ * <p>
+ *     {@link #mapConcurrent(LongStream, int, LongFunction)} is a stream stage in between. It maps each item on its
+ *     own Virtual Thread, keeping up to <tt>window</tt> items in flight, and because the items complete in any
+ *     order, it holds them in a reorder buffer so they are emitted in encounter order.
+ * </p>
+ * <pre>
+ * try (var results = ConcurrentStreams.mapConcurrent(LongStream.range(0, 10_000), 1_000, doubleItTransactionally)) {
+ *     var list = results.filter(x -> x % 3 == 0).toList();
+ * }
+ * </pre>
+ * <p>
+ *     The source is consumed lazily, so a slow consumer holds back the source rather than letting the buffer grow.
+ *     Closing the stream cancels anything still in flight, which matters if the pipeline stops early, such as with
+ *     {@link Stream#findFirst()}, or fails.
+ * </p>
+ */
+public class ConcurrentStreams {
+
+    /**
+     * Map each item of <tt>source</tt> on a Virtual Thread, with at most <tt>window</tt> in flight, emitting the
+     * results in encounter order.
+     * @param source of items
+     * @param window maximum number of items in flight, also the size of the reorder buffer
+     * @param mapper blocking or transactional function to apply
+     * @return sequential, ordered stream of results, which should be closed
+     * @param <R> type of results
+     */
+    public static <R> Stream<R> mapConcurrent(LongStream source, int window, LongFunction<R> mapper) {
+        if (window < 1) throw new IllegalArgumentException("window must be positive");
+        var spliterator = new ReorderingSpliterator<>(source.iterator(), window, mapper);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close).onClose(source::close);
+    }
+
+    static class ReorderingSpliterator<R> extends Spliterators.AbstractSpliterator<R> implements AutoCloseable {
+
+        final PrimitiveIterator.OfLong source;
+        final LongFunction<R> mapper;
+        final ExecutorService executorService = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().factory());
+
+        // Ring buffer of futures in encounter order, from head, with count in flight
+        final Future<R>[] buffer;
+        int head = 0;
+        int count = 0;
+
+        @SuppressWarnings("unchecked")
+        ReorderingSpliterator(PrimitiveIterator.OfLong source, int window, LongFunction<R> mapper) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+            this.source = source;
+            this.mapper = mapper;
+            this.buffer = new Future[window];
+        }
+
+        void fill() {
+            while (count < buffer.length && source.hasNext()) {
+                final var item = source.nextLong();
+                buffer[(head + count) % buffer.length] = executorService.submit(() -> mapper.apply(item));
+                count++;
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super R> action) {
+            fill();
+            if (count == 0) {
+                executorService.close();
+                return false;
+            }
+            var future = buffer[head];
+            buffer[head] = null;
+            head = (head + 1) % buffer.length;
+            count--;
+            R result;
+            try {
+                result = future.get();
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted waiting for " + future);
+            } catch (ExecutionException e) {
+                close();
+                if (e.getCause() instanceof RuntimeException runtimeException) throw runtimeException;
+                if (e.getCause() instanceof Error error) throw error;
+                throw new IllegalStateException(e.getCause());
+            }
+            // Keep the window full while the downstream stages work on this result
+            fill();
+            action.accept(result);
+            return true;
+        }
+
+        @Override
+        public void close() {
+            executorService.shutdownNow();
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package net.kolotyluk.loom;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
 public class Context {
 
     static int availableProcessors = Runtime.getRuntime().availableProcessors();
@@ -18,4 +22,27 @@ public class Context {
                 """, clazz.getName(), pid, availableProcessors, maxMemory);
     }
 
+    /**
+     * Collect garbage, then reset the peak usage of the heap memory pools, before running something we want to
+     * know the {@link #peakHeap()} of.
+     */
+    static void resetPeakHeap() {
+        System.gc();
+        ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    /**
+     * Sum of the peak usage of the heap memory pools since {@link #resetPeakHeap()}. As the pools may peak at
+     * different times, this is an upper bound.
+     * @return peak heap usage in bytes
+     */
+    static long peakHeap() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .mapToLong(pool -> pool.getPeakUsage().getUsed())
+                .sum();
+    }
+
 }
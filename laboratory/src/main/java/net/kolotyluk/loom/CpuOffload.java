@@ -0,0 +1,108 @@
+package net.kolotyluk.loom;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongFunction;
+
+/**
+ * <h1>CPU Offload</h1>
+ * <p>
+ *     The Virtual Thread scheduler does not time slice. A Virtual Thread only gives up its Carrier Thread when it
+ *     blocks, so one that spends 50 ms in a trial division loop, like the larger candidates of
+ *     {@link Experiment10_PrimeStreams#primeThreads}, keeps its carrier for all 50 ms. With only as many carriers as
+ *     cores, a handful of such tasks is enough to make every transactional task that wakes up from its
+ *     {@link Lag} wait for a carrier, and that wait shows up in their tail latency.
+ * </p>
+ * <p>
+ *     {@link #call(Callable)} runs the CPU heavy part on a small, dedicated {@link ForkJoinPool} of Platform
+ *     Threads instead, while the calling Virtual Thread parks waiting for the result, so its carrier is free to run
+ *     other Virtual Threads. The operating system time slices the offload threads with the carriers, so the
+ *     computational work still gets done, it just no longer gets in line ahead of everything else.
+ * </p>
+ * <pre>
+ * try (var offload = new CpuOffload()) {
+ *     . . .
+ *     lag.sleep();                                                 // transactional, stays on the Virtual Thread
+ *     var prime = offload.call(() -> Primes.isPrime(value, 0, 0)); // computational, runs on the offload pool
+ *     . . .
+ * }
+ * </pre>
+ * <p>
+ *     Called from a Platform Thread there is no carrier to free, so the task just runs in the calling thread.
+ * </p>
+ * <p>
+ *     Note: this costs two thread hand-offs per call, so it is only worth it for segments much longer than a few
+ *     microseconds. The pool is bounded, so if every task offloads, they queue for it, which is the point, as the
+ *     carriers stay responsive, but it also caps computational throughput at the size of the pool.
+ * </p>
+ */
+public class CpuOffload implements AutoCloseable {
+
+    final ForkJoinPool pool;
+
+    /**
+     * Create an offload pool with half as many threads as there are cores, leaving the rest for the carriers.
+     */
+    public CpuOffload() {
+        this(Math.max(1, Context.availableProcessors / 2));
+    }
+
+    /**
+     * @param parallelism number of Platform Threads in the offload pool
+     */
+    public CpuOffload(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Run <tt>task</tt> on the offload pool, parking the current Virtual Thread until it completes.
+     * @param task computational segment
+     * @return result of the task
+     * @param <T> type of result
+     * @throws CancellationException if interrupted while waiting
+     */
+    public <T> T call(Callable<T> task) {
+        if (!Thread.currentThread().isVirtual()) {
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        var future = pool.submit(task);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted waiting for " + future);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) throw runtimeException;
+            if (e.getCause() instanceof Error error) throw error;
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @param task computational task
+     * @return the same task, but run via {@link #call(Callable)}
+     * @param <R> type of result
+     */
+    public <R> LongFunction<R> offload(LongFunction<R> task) {
+        return value -> call(() -> task.apply(value));
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "CpuOffload[" + pool + "]";
+    }
+}
@@ -0,0 +1,142 @@
+package net.kolotyluk.loom;
+
+import jdk.incubator.concurrent.StructuredTaskScope;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <h1>Deadline Scope</h1>
+ * <p>
+ *     With {@link StructuredTaskScope#joinUntil(Instant)}, or
+ *     {@link java.util.concurrent.ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)} as in
+ *     {@link Experiment91}, when the deadline passes we get a {@link TimeoutException}, and everything the subtasks
+ *     did is thrown away, even if 99 out of 100 of them had already finished.
+ * </p>
+ * <p>
+ *     For many aggregation queries, such as a search over many shards, or a sum over many partitions, an answer
+ *     from most of the data on time is better than a complete answer late. This scope waits until the deadline,
+ *     takes whatever has completed by then, with how complete it is, then shuts down, interrupting the stragglers,
+ *     so the caller can trade accuracy for tail latency.
+ * </p>
+ * <pre>
+ * try (var scope = new DeadlineScope&lt;Long&gt;(virtualThreadFactory)) {
+ *     for (var shard : shards) scope.fork(() -> query(shard));
+ *     var partial = scope.joinPartial(Instant.now().plusMillis(20));
+ *     var estimate = partial.results().stream().mapToLong(Long::longValue).sum() / partial.completeness();
+ * }
+ * </pre>
+ * <p>
+ *     Unlike {@link StructuredTaskScope.ShutdownOnFailure}, a failed subtask does not shut the scope down, it is
+ *     just counted, and left out of the results, the same as one that did not finish in time.
+ * </p>
+ * <p>
+ *     Note: the results are taken at the deadline, before the scope shuts down, so a straggler is left out even if
+ *     it ignores the interrupt and goes on to return normally. However, {@link #close()} still waits for it to
+ *     finish, so such a subtask can hold up the scope past the deadline.
+ * </p>
+ * @param <T> type of subtask results
+ */
+public class DeadlineScope<T> extends StructuredTaskScope<T> {
+
+    // Only touched by the owner
+    final List<Future<? extends T>> futures = new ArrayList<>();
+
+    /**
+     * @param results that completed in time, in the order they were forked
+     * @param forked number of subtasks forked
+     * @param failed number of subtasks that completed with an exception
+     * @param timedOut true if the deadline passed before every subtask completed
+     * @param elapsed time from the first fork until the results were collected
+     * @param <T> type of subtask results
+     */
+    public record Partial<T>(List<T> results, int forked, int failed, boolean timedOut, Duration elapsed) {
+
+        /**
+         * @return fraction of the subtasks that returned a result, between 0.0 and 1.0
+         */
+        public double completeness() {
+            return forked == 0 ? 1.0 : (double) results.size() / forked;
+        }
+
+        /**
+         * @return number of subtasks that had not completed by the deadline
+         */
+        public int late() {
+            return forked - results.size() - failed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Partial[results = %d of %d, failed = %d, late = %d, completeness = %.1f%%, elapsed = %.3f ms]",
+                    results.size(), forked, failed, late(), completeness() * 100, elapsed.toNanos() / 1e6);
+        }
+    }
+
+    long startTime;
+
+    /**
+     * @param threadFactory to create the subtask threads
+     */
+    public DeadlineScope(ThreadFactory threadFactory) {
+        super(null, threadFactory);
+    }
+
+    @Override
+    public <U extends T> Future<U> fork(Callable<? extends U> task) {
+        if (futures.isEmpty()) startTime = System.nanoTime();
+        var future = super.<U>fork(task);
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * Wait for all the subtasks, or until the deadline, whichever comes first, collect the results that completed
+     * by then, then shut down, interrupting any stragglers.
+     * @param deadline to stop waiting
+     * @return results so far
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Partial<T> joinPartial(Instant deadline) throws InterruptedException {
+        try {
+            joinUntil(deadline);
+            return collect(false);
+        } catch (TimeoutException e) {
+            // Take the results first, shutdown only interrupts the stragglers, which may still return normally
+            var partial = collect(true);
+            shutdown();
+            join();
+            return partial;
+        }
+    }
+
+    Partial<T> collect(boolean timedOut) {
+        var elapsed = Duration.ofNanos(futures.isEmpty() ? 0 : System.nanoTime() - startTime);
+        var results = new ArrayList<T>(futures.size());
+        var failed = 0;
+        for (var future : futures) {
+            switch (future.state()) {
+                case SUCCESS -> results.add(future.resultNow());
+                case FAILED -> failed++;
+                default -> {} // still running at the deadline
+            }
+        }
+        return new Partial<>(results, futures.size(), failed, timedOut, elapsed);
+    }
+
+    /**
+     * Like {@link #joinPartial(Instant)}, with the deadline <tt>timeout</tt> from now.
+     * @param timeout how long to wait
+     * @return results so far
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Partial<T> joinPartial(Duration timeout) throws InterruptedException {
+        return joinPartial(Instant.now().plus(timeout));
+    }
+}
@@ -0,0 +1,169 @@
+package net.kolotyluk.loom;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * <h1>Simulated Downstream Service</h1>
+ * <p>
+ *     A {@link Lag} on its own models a service with infinite capacity, where a million concurrent calls take no
+ *     longer than one, so there is no such thing as too much concurrency. Real services, such as a database or a
+ *     REST endpoint, can only work on so many requests at once, and the rest wait in a queue.
+ * </p>
+ * <p>
+ *     A Downstream serves at most <tt>capacity</tt> calls at once, each taking its {@link Lag}, and queues the rest
+ *     in FIFO order. Below capacity, latency is just the lag. Above capacity, throughput stays at
+ *     <tt>capacity / lag</tt>, and the extra concurrency only adds queueing delay, so this is the simplest
+ *     downstream where the right amount of concurrency is something we can find.
+ * </p>
+ * <pre>
+ * var downstream = new Downstream(100, new Lag(Duration.ofMillis(1)));
+ * LongFunction&lt;Long&gt; task = downstream.task();
+ * . . .
+ * System.out.println(downstream);
+ * </pre>
+ * <h2>Fault Injection</h2>
+ * <p>
+ *     With {@link #setFailureRate(double)}, that fraction of calls throw a {@link Failure} after they have been
+ *     served, so a failed call still costs a server for its lag, as a real error response would. With
+ *     {@link #setLag(Lag)}, calls slow down, as when a dependency hangs rather than fails. Both can be changed at
+ *     any time, such as to simulate an outage, and back.
+ * </p>
+ */
+public class Downstream {
+
+    final int capacity;
+    volatile Lag lag;
+    final Semaphore servers;
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    volatile double failureRate;
+
+    /**
+     * Thrown by a call that failed by injection, see {@link #setFailureRate(double)}.
+     */
+    public static class Failure extends RuntimeException {
+        public Failure(String message) {
+            super(message, null, false, false); // no stack trace, failures are expected, and may be many
+        }
+    }
+
+    /**
+     * @param capacity number of calls served at once
+     * @param lag time to serve each call
+     */
+    public Downstream(int capacity, Lag lag) {
+        this.capacity = capacity;
+        this.lag = lag;
+        this.servers = new Semaphore(capacity, true);
+    }
+
+    /**
+     * Wait for a free server, then serve the call.
+     * @param value argument
+     * @return twice the value
+     * @throws Failure at the failure rate
+     * @throws InterruptedException while waiting for a server, or serving
+     */
+    public long call(long value) throws InterruptedException {
+        calls.incrementAndGet();
+        servers.acquire();
+        try {
+            lag.sleep(); // restores the interrupt status
+            if (Thread.interrupted()) throw new InterruptedException("interrupted while serving");
+            if (failureRate > 0.0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                failures.incrementAndGet();
+                throw new Failure("injected failure");
+            }
+            return value + value;
+        }
+        finally {
+            servers.release();
+        }
+    }
+
+    /**
+     * {@link #call(long)} as a task for code that cannot throw checked exceptions, such as a
+     * {@link LongFunction}. An interrupt, usually from the scope of the task shutting down, restores the interrupt
+     * status, and fails the task with a {@link CancellationException}.
+     * @return task calling this downstream
+     */
+    public LongFunction<Long> task() {
+        return value -> {
+            try {
+                return call(value);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted calling the downstream");
+            }
+        };
+    }
+
+    /**
+     * @return number of calls made, served or not
+     */
+    public long calls() {
+        return calls.get();
+    }
+
+    /**
+     * @return number of calls that failed by injection
+     */
+    public long failures() {
+        return failures.get();
+    }
+
+    /**
+     * @param failureRate fraction of calls to fail, between 0.0 and 1.0
+     */
+    public void setFailureRate(double failureRate) {
+        if (failureRate < 0.0 || failureRate > 1.0) throw new IllegalArgumentException("failureRate must be between 0 and 1");
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * @param lag time to serve each call from now on
+     */
+    public void setLag(Lag lag) {
+        this.lag = lag;
+    }
+
+    /**
+     * @return fraction of calls to fail
+     */
+    public double failureRate() {
+        return failureRate;
+    }
+
+    /**
+     * @return number of calls waiting for a server
+     */
+    public int queued() {
+        return servers.getQueueLength();
+    }
+
+    /**
+     * @return the concurrency at which throughput peaks, <tt>capacity</tt>
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the best throughput possible, in calls per second
+     */
+    public double maximumThroughput() {
+        var mean = lag.minimum().plus(lag.maximum()).dividedBy(2);
+        return mean.isZero() ? Double.POSITIVE_INFINITY : capacity * 1e9 / mean.toNanos();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Downstream[capacity = %d, lag = %s, calls = %d, failures = %d, maximum throughput = %.1f calls/second]",
+                capacity, lag.minimum().equals(lag.maximum()) ? lag.minimum() : lag.minimum() + ".." + lag.maximum(),
+                calls(), failures(), maximumThroughput());
+    }
+}
@@ -2,13 +2,22 @@ package net.kolotyluk.loom;
 
 import jdk.incubator.concurrent.StructuredTaskScope;
 
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 import java.util.function.LongFunction;
+import java.util.function.UnaryOperator;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
@@ -222,7 +231,35 @@ public class Experiment02_Throughput {
         var time3 = System.currentTimeMillis();
         System.out.println((time3 - time2) + " milliseconds");
 
+        CarrierWatchdog.watch("pinning", () -> pinning(limit, 0.1));
 
+        virtualTime(10_000_000, 42);
+
+        limiting(100_000, 100);
+
+        CarrierWatchdog.watch("offloading", () -> offloading(limit, 0.05));
+
+        deadlines(100, 100);
+
+        hedging(100_000, 1000, 0.05);
+
+        coalescing(100_000, 1000, 100);
+
+        batching(100_000, Duration.ofNanos(100_000), 1, 10, 100, 1000);
+
+        caching(10_000, 5);
+
+        retrying(100_000, 100, 0.1);
+        retrying(100_000, 100, 0.5);
+
+        outage(100_000, 20_000, Duration.ofSeconds(1), Duration.ofSeconds(2));
+
+        rateLimiting(1_000_000, 100_000, 1000);
+        rateLimitingPerKey(1_000_000, 1000, 100);
+
+        overload(5, 100, Duration.ofMillis(100), 5_000, 10_000, 20_000, 40_000);
+
+        prioritizing(200_000, 1000, 1000, 100); // the flood takes at least 2 s, the interactive tasks 1 s
     }
 
     static Lag simpleLag = new Lag(Duration.ofMillis(1));
@@ -233,6 +270,26 @@ public class Experiment02_Throughput {
         return value * value + value;
     };
 
+    /**
+     * Shared by {@link #doubleItTransactionallyCached} across calls, and benchmark iterations, so after the first
+     * round almost every call is a hit.
+     */
+    static LoadingCache<Long> transactionalCache =
+            new LoadingCache<>(10_000, Duration.ofSeconds(1), Duration.ofMillis(800), doubleItTransactionally, Thread.ofVirtual().factory());
+
+    /**
+     * {@link #doubleItTransactionally} behind a {@link LoadingCache}.
+     */
+    static public LongFunction<Long> doubleItTransactionallyCached = transactionalCache::get;
+
+    /**
+     * The batch version of {@link #doubleItTransactionally}, where a single {@link Lag} pays for all the values.
+     */
+    static public Function<long[], List<Long>> doubleAllTransactionally = (values) -> {
+        simpleLag.sleep();
+        return LongStream.of(values).mapToObj(value -> value * value + value).toList();
+    };
+
     static public LongFunction<Long> isPrime = (value) -> Primes.isPrime(value + 104_729, 0, 0) ? value : 0;
     //static public LongFunction<Long> isPrime = (value) -> Primes.isPrime(value +  100000000003L, 0, 0) ? value : 0;
 
@@ -242,6 +299,239 @@ public class Experiment02_Throughput {
         //return Primes.isPrime(value + 100_000_000, 0, 0) ? value : 0;
     };
 
+    /**
+     * Like {@link #doubleItTransactionally}, but the given fraction of tasks sleep inside <tt>synchronized</tt>,
+     * pinning their Carrier Thread, see {@link Lag#sleepPinned(Object)}.
+     * @param pinnedFraction between 0.0 and 1.0
+     * @return transactional task
+     */
+    static public LongFunction<Long> doubleItPinned(double pinnedFraction) {
+        return (value) -> {
+            if (isSelected(value, pinnedFraction))
+                simpleLag.sleepPinned(new Object());
+            else
+                simpleLag.sleep();
+            return value * value + value;
+        };
+    }
+
+    /**
+     * Like {@link #doubleItPinned(double)}, but the selected tasks hold a {@link ReentrantLock} instead of a monitor,
+     * see {@link Lag#sleepLocked(java.util.concurrent.locks.Lock)}.
+     * @param lockedFraction between 0.0 and 1.0
+     * @return transactional task
+     */
+    static public LongFunction<Long> doubleItLocked(double lockedFraction) {
+        return (value) -> {
+            if (isSelected(value, lockedFraction))
+                simpleLag.sleepLocked(new ReentrantLock());
+            else
+                simpleLag.sleep();
+            return value * value + value;
+        };
+    }
+
+    static boolean isSelected(long value, double fraction) {
+        // 7919 is prime, so this permutes the residues and spreads the selected tasks out rather than clumping them
+        return Math.floorMod(value * 7919, 1000) < fraction * 1000;
+    }
+
+    /**
+     * <p>
+     *     Quantify carrier starvation. When a Virtual Thread sleeps inside <tt>synchronized</tt> it cannot unmount,
+     *     so with C carriers (<tt>jdk.virtualThreadScheduler.parallelism</tt>, by default the number of CPU Cores)
+     *     and a fraction p of pinning tasks, throughput is bounded by roughly C / (p &times; lag) no matter how many
+     *     Virtual Threads we start. The {@link ReentrantLock} variant holds a lock for just as long, but does not
+     *     pin, so it should perform like the baseline.
+     * </p>
+     * <pre>
+     * $ java -Djdk.tracePinnedThreads=short ...
+     * </pre>
+     * @param limit number of tasks
+     * @param pinnedFraction fraction of tasks that pin, between 0.0 and 1.0
+     */
+    public static void pinning(long limit, double pinnedFraction) {
+        var virtualThreadFactory = Thread.ofVirtual().factory();
+
+        System.out.println("pinning: baseline");
+        structuredThreads(doubleItTransactionally, limit, virtualThreadFactory);
+        System.out.println("pinning: " + pinnedFraction + " of tasks sleep in synchronized");
+        structuredThreads(doubleItPinned(pinnedFraction), limit, virtualThreadFactory);
+        System.out.println("pinning: " + pinnedFraction + " of tasks sleep holding a ReentrantLock");
+        structuredThreads(doubleItLocked(pinnedFraction), limit, virtualThreadFactory);
+    }
+
+    /**
+     * <p>
+     *     What-if capacity study of {@link #isPrimeTransactionally} in virtual time, see {@link VirtualClock}.
+     *     At 10,000,000 tasks this completes in seconds, rather than the hours it would take to sleep for real,
+     *     and the same seed always gives the same result.
+     * </p>
+     * @param limit number of tasks
+     * @param seed for the simulated lag
+     */
+    public static void virtualTime(long limit, long seed) {
+        for (var concurrency : new long[] {Context.availableProcessors, 1_000, 100_000, Long.MAX_VALUE}) {
+            System.out.println("virtualTime: " + new VirtualClock(seed).simulate(isPrimeTransactionally, limit, concurrency));
+        }
+    }
+
+    /**
+     * A prime near 10<sup>12</sup>, so that trial division takes half a million divisions, a few milliseconds of CPU.
+     */
+    static final long heavyPrime = 1_000_000_000_039L;
+
+    static public LongFunction<Long> isPrimeHeavily = (value) -> Primes.isPrime(heavyPrime, 0, 0) ? value : 0;
+
+    /**
+     * <p>
+     *     Mix mostly transactional tasks with a fraction of {@link #isPrimeHeavily} tasks, and compare the latency of
+     *     the transactional tasks when the computational tasks run on their own Virtual Threads, monopolizing the
+     *     carriers, against when they are sent to a {@link CpuOffload} pool.
+     * </p>
+     * @param limit number of tasks
+     * @param cpuFraction fraction of tasks that are computational, between 0.0 and 1.0
+     */
+    public static void offloading(long limit, double cpuFraction) {
+        System.out.println("offloading: " + cpuFraction + " of tasks computational, inline");
+        System.out.println("    transactional latency: " + mixedLatency(limit, cpuFraction, null));
+        try (var offload = new CpuOffload()) {
+            System.out.println("offloading: " + cpuFraction + " of tasks computational, offloaded to " + offload);
+            System.out.println("    transactional latency: " + mixedLatency(limit, cpuFraction, offload));
+        }
+    }
+
+    static Latencies.Summary mixedLatency(long limit, double cpuFraction, CpuOffload offload) {
+        var latencies = new Latencies(Math.toIntExact(limit));
+        var computational = offload == null ? isPrimeHeavily : offload.offload(isPrimeHeavily);
+        LongFunction<Long> task = (value) -> {
+            if (isSelected(value, cpuFraction)) return computational.apply(value);
+            var startTime = System.nanoTime();
+            var result = doubleItTransactionally.apply(value);
+            latencies.record(System.nanoTime() - startTime);
+            return result;
+        };
+        structuredThreads(task, limit, Thread.ofVirtual().factory());
+        return latencies.summary();
+    }
+
+    /**
+     * Each shard of {@link #deadlines(int, int)} takes between 1 and 50 ms, so the slowest of many shards is nearly
+     * always close to 50 ms.
+     */
+    static Lag shardLag = new Lag(Duration.ofMillis(1), Duration.ofMillis(50));
+
+    /**
+     * <p>
+     *     Trade accuracy for tail latency. Each query fans out to <tt>shards</tt> subtasks, and sums their results,
+     *     first waiting for all of them, then with shorter and shorter deadlines via {@link DeadlineScope}, where
+     *     the sum of the shards that made it is scaled up by the completeness to estimate the full sum.
+     * </p>
+     * @param queries number of queries for each deadline
+     * @param shards subtasks per query
+     */
+    public static void deadlines(int queries, int shards) {
+        var exact = LongStream.range(0, shards).map(shard -> shard + shard).sum();
+        for (var timeout : new Duration[] {Duration.ofSeconds(1), Duration.ofMillis(40), Duration.ofMillis(20), Duration.ofMillis(10)}) {
+            var latencies = new Latencies(queries);
+            var completeness = 0.0;
+            var error = 0.0;
+            for (int query = 0; query < queries; query++) {
+                var startTime = System.nanoTime();
+                try (var scope = new DeadlineScope<Long>(Thread.ofVirtual().factory())) {
+                    for (long shard = 0; shard < shards; shard++) {
+                        final var item = shard;
+                        scope.fork(() -> {
+                            shardLag.sleep();
+                            return item + item;
+                        });
+                    }
+                    var partial = scope.joinPartial(timeout);
+                    var sum = partial.results().stream().mapToLong(Long::longValue).sum();
+                    var estimate = partial.completeness() == 0 ? 0 : sum / partial.completeness();
+                    completeness += partial.completeness();
+                    error += Math.abs(estimate - exact) / exact;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                latencies.record(System.nanoTime() - startTime);
+            }
+            System.out.printf("deadlines: timeout = %d ms, completeness = %.1f%%, error = %.1f%%%n    latency: %s%n",
+                    timeout.toMillis(), completeness * 100 / queries, error * 100 / queries, latencies.summary());
+        }
+    }
+
+    static Lag fastLag = new Lag(Duration.ofMillis(1), Duration.ofMillis(5));
+    static Lag slowLag = new Lag(Duration.ofMillis(50), Duration.ofMillis(100));
+
+    /**
+     * Like {@link #doubleItTransactionally}, but usually fast, and now and then very slow, which is what real
+     * backends tend to look like, where a few slow calls, from garbage collection, a cold cache, a busy disk, and
+     * so on, make the tail.
+     * @param slowFraction fraction of calls that are slow, between 0.0 and 1.0
+     * @return transactional task
+     */
+    static public LongFunction<Long> doubleItWithTail(double slowFraction) {
+        return (value) -> {
+            if (ThreadLocalRandom.current().nextDouble() < slowFraction)
+                slowLag.sleep();
+            else
+                fastLag.sleep();
+            return value + value;
+        };
+    }
+
+    /**
+     * <p>
+     *     Compare the latency distribution of calls to a backend with a tail, see {@link #doubleItWithTail(double)},
+     *     made directly, and via a {@link HedgedExecutor} at the 95th percentile. The slow calls are drawn at random
+     *     on each attempt, so the backup request of a slow call is most likely fast.
+     * </p>
+     * <p>
+     *     Each of <tt>clients</tt> virtual threads makes its calls one after another, so the latencies are those of
+     *     the backend, and of hedging, rather than of a million threads queueing up for the carriers at once.
+     * </p>
+     * @param limit number of calls
+     * @param clients number of concurrent callers
+     * @param slowFraction fraction of attempts that are slow
+     */
+    public static void hedging(long limit, int clients, double slowFraction) {
+        var task = doubleItWithTail(slowFraction);
+        var virtualThreadFactory = Thread.ofVirtual().factory();
+        var callsPerClient = limit / clients;
+
+        var direct = new Latencies(Math.toIntExact(callsPerClient * clients));
+        structuredThreads(client -> {
+            var sum = 0L;
+            for (long call = 0; call < callsPerClient; call++) {
+                var startTime = System.nanoTime();
+                sum += task.apply(call);
+                direct.record(System.nanoTime() - startTime);
+            }
+            return sum;
+        }, clients, virtualThreadFactory);
+        System.out.println("hedging: direct\n    latency: " + direct.summary());
+
+        var hedged = new Latencies(Math.toIntExact(callsPerClient * clients));
+        var executor = new HedgedExecutor(0.95, Duration.ofMillis(10), virtualThreadFactory);
+        structuredThreads(client -> {
+            var sum = 0L;
+            for (long call = 0; call < callsPerClient; call++) {
+                final var value = call;
+                var startTime = System.nanoTime();
+                try {
+                    sum += executor.call(() -> task.apply(value));
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+                hedged.record(System.nanoTime() - startTime);
+            }
+            return sum;
+        }, clients, virtualThreadFactory);
+        System.out.println("hedging: " + executor + "\n    latency: " + hedged.summary());
+    }
+
     public static List<Long> baselineStream(LongFunction<Long> task, long limit) {
         return LongStream.range(0,limit).mapToObj(task::apply).toList();
     }
@@ -250,43 +540,604 @@ public class Experiment02_Throughput {
         return LongStream.range(0,limit).parallel().mapToObj(task::apply).toList();
     }
 
-    public interface Counter {
-        public Long count(LongFunction<Long> function, Long item);
+    /**
+     * In between {@link #parallelStream(LongFunction, long)} and
+     * {@link #structuredThreads(LongFunction, long, ThreadFactory)}, map each item on a Virtual Thread within an
+     * ordinary Stream pipeline, see {@link ConcurrentStreams#mapConcurrent(LongStream, int, LongFunction)}.
+     * @param task to run
+     * @param limit number of tasks
+     * @param window maximum number of tasks in flight
+     * @return results in order
+     */
+    public static List<Long> concurrentStream(LongFunction<Long> task, long limit, int window) {
+        try (var results = ConcurrentStreams.mapConcurrent(LongStream.range(0, limit), window, task)) {
+            return results.toList();
+        }
+    }
+
+    /**
+     * Let {@link AdaptiveExecutor} choose between {@link #parallelStream(LongFunction, long)}, Virtual Threads, or
+     * something in between, based on how much of each task is spent on the CPU.
+     * @param task to run
+     * @param limit number of tasks
+     * @return results in order
+     */
+    public static List<Long> adaptive(LongFunction<Long> task, long limit) {
+        return AdaptiveExecutor.map(task, limit);
     }
 
+    /**
+     * Run <tt>task</tt> for each item from <tt>0</tt> until <tt>limit</tt> in its own thread, collecting the results
+     * in order via a {@link LongResultScope}, so that this does the same work as {@link #baselineStream} and
+     * {@link #parallelStream}.
+     * @param task to run
+     * @param limit number of tasks
+     * @param threadFactory platform or virtual
+     * @return results in order
+     */
     public static List<Long> structuredThreads(LongFunction<Long> task, long limit, ThreadFactory threadFactory) {
+        return structuredThreads(task, limit, threadFactory, null);
+    }
+
+    /**
+     * Like {@link #structuredThreads(LongFunction, long, ThreadFactory)}, but only fork while the
+     * {@link ConcurrencyLimiter} has room, so the number of tasks in flight adapts to what the downstream can take.
+     * @param task to run
+     * @param limit number of tasks
+     * @param threadFactory platform or virtual
+     * @param limiter adaptive concurrency limit, or null for unbounded
+     * @return results in order
+     */
+    public static List<Long> structuredThreads(LongFunction<Long> task, long limit, ThreadFactory threadFactory, ConcurrencyLimiter limiter) {
+
+        var gauge = new ConcurrencyGauge();
+        var startTime = System.nanoTime();
+
+        try (var scope = new LongResultScope(Math.toIntExact(limit), threadFactory)) {
+            for (int index = 0; index < limit; index++) {
+                final long item = index;
+                final var acquired = limiter == null ? 0L : limiter.acquire();
+                scope.fork(index, () -> {
+                    var success = false;
+                    gauge.enter();
+                    try {
+                        var result = task.apply(item);
+                        success = true;
+                        return result;
+                    }
+                    finally {
+                        gauge.exit();
+                        if (limiter != null) limiter.release(acquired, success);
+                    }
+                });
+            }
+            scope.join();
+            return LongStream.of(scope.results()).boxed().toList();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+        finally {
+            var elapsed = Duration.ofNanos(System.nanoTime() - startTime);
+            System.out.printf("threadMaximum = %d, elapsed = %d ms, throughput = %.1f tasks/second for %s%n",
+                    gauge.maximum(), elapsed.toMillis(), limit * 1e9 / elapsed.toNanos(), threadFactory);
+        }
+    }
+
+    /**
+     * <p>
+     *     Show that a {@link ConcurrencyLimiter} converges near the concurrency where throughput peaks. Each task
+     *     calls a {@link Downstream} that can only serve <tt>capacity</tt> calls at once, so with unbounded Virtual
+     *     Threads nearly every task waits in its queue, while throughput is no better than at <tt>capacity</tt>.
+     * </p>
+     * @param limit number of tasks
+     * @param capacity of the downstream
+     */
+    public static void limiting(long limit, int capacity) {
+        var virtualThreadFactory = Thread.ofVirtual().factory();
+
+        var unbounded = new Downstream(capacity, simpleLag);
+        System.out.println("limiting: unbounded, " + unbounded);
+        structuredThreads(unbounded.task(), limit, virtualThreadFactory);
 
-        var threadCount = new AtomicLong();
-        var threadMaximum = new AtomicLong();
+        var limiter = new ConcurrencyLimiter();
+        var limited = new Downstream(capacity, simpleLag);
+        System.out.println("limiting: adaptive, " + limited);
+        structuredThreads(limited.task(), limit, virtualThreadFactory, limiter);
+        var history = limiter.history();
+        for (int index = 0; index < history.size(); index += Math.max(1, history.size() / 10))
+            System.out.println("    " + history.get(index));
+        System.out.println("limiting: " + limiter);
+    }
+
+    /**
+     * <p>
+     *     A duplicate heavy variant of {@link #limiting(long, int)}, where the <tt>limit</tt> tasks only ask
+     *     <tt>distinct</tt> different questions of a {@link Downstream}, first each making its own call, and then
+     *     coalesced with a {@link SingleFlight}, comparing the number of backend calls and the latency.
+     * </p>
+     * @param limit number of tasks
+     * @param distinct number of different keys
+     * @param capacity of the downstream
+     */
+    public static void coalescing(long limit, int distinct, int capacity) {
+        var virtualThreadFactory = Thread.ofVirtual().factory();
 
-        Counter counter = (function, item) -> {
+        var direct = new Downstream(capacity, simpleLag);
+        var directTask = direct.task();
+        var directLatencies = new Latencies(Math.toIntExact(limit));
+        structuredThreads(value -> {
+            var startTime = System.nanoTime();
             try {
-                var newCount = threadCount.incrementAndGet();
-                return function.apply(item);
+                return directTask.apply(value % distinct);
             }
             finally {
-                var highCount = threadCount.getAndDecrement();
-                var maximum = 0L;
-                do {
-                    maximum = threadMaximum.get();
-                    if (highCount <= maximum) break;
-                } while (!threadMaximum.compareAndSet(maximum, highCount));
+                directLatencies.record(System.nanoTime() - startTime);
             }
-        };
+        }, limit, virtualThreadFactory);
+        System.out.println("coalescing: direct, " + direct + "\n    latency: " + directLatencies.summary());
+
+        var coalesced = new Downstream(capacity, simpleLag);
+        var coalescedLatencies = new Latencies(Math.toIntExact(limit));
+        var coalescedTask = coalesced.task();
+        var singleFlight = new SingleFlight<Long>();
+        structuredThreads(value -> {
+            var startTime = System.nanoTime();
+            try {
+                return singleFlight.call(value % distinct, coalescedTask);
+            }
+            finally {
+                coalescedLatencies.record(System.nanoTime() - startTime);
+            }
+        }, limit, virtualThreadFactory);
+        System.out.println("coalescing: " + singleFlight + ", " + coalesced + "\n    latency: " + coalescedLatencies.summary());
+    }
+
+    /**
+     * <p>
+     *     Compare {@link #doubleItTransactionally}, one {@link Lag} per item, with {@link #doubleAllTransactionally}
+     *     via a {@link BatchLoader}, one {@link Lag} per batch, for each of the <tt>batchSizes</tt>, printing the
+     *     throughput, and the latency each caller sees, including the wait for its batch to fill up.
+     * </p>
+     * @param limit number of tasks
+     * @param maximumDelay longest to wait for a batch to fill up
+     * @param batchSizes maximum batch sizes to try
+     */
+    public static void batching(long limit, Duration maximumDelay, int... batchSizes) {
+        var virtualThreadFactory = Thread.ofVirtual().factory();
+
+        var perItem = new Latencies(Math.toIntExact(limit));
+        structuredThreads(value -> {
+            var startTime = System.nanoTime();
+            try {
+                return doubleItTransactionally.apply(value);
+            }
+            finally {
+                perItem.record(System.nanoTime() - startTime);
+            }
+        }, limit, virtualThreadFactory);
+        System.out.println("batching: per item\n    latency: " + perItem.summary());
+
+        for (var batchSize : batchSizes) {
+            var loader = new BatchLoader<>(batchSize, maximumDelay, doubleAllTransactionally);
+            var batched = new Latencies(Math.toIntExact(limit));
+            structuredThreads(value -> {
+                var startTime = System.nanoTime();
+                try {
+                    return loader.load(value);
+                }
+                finally {
+                    batched.record(System.nanoTime() - startTime);
+                }
+            }, limit, virtualThreadFactory);
+            System.out.println("batching: " + loader + "\n    latency: " + batched.summary());
+        }
+    }
+
+    /**
+     * <p>
+     *     Run <tt>rounds</tt> of the same <tt>limit</tt> {@link #doubleItTransactionally} calls behind a
+     *     {@link LoadingCache}, on Platform Threads and on Virtual Threads. The first round is all misses, so each
+     *     thread waits on a {@link Lag}, where Virtual Threads shine, while later rounds are nearly all hits, so the
+     *     difference comes down to the cost of the threads themselves.
+     * </p>
+     * @param limit number of distinct keys, and tasks per round
+     * @param rounds number of times to ask for every key
+     */
+    public static void caching(long limit, int rounds) {
+        for (var threadFactory : List.of(Thread.ofPlatform().factory(), Thread.ofVirtual().factory())) {
+            var cache = new LoadingCache<>(Math.toIntExact(limit), Duration.ofSeconds(1), Duration.ofMillis(800), doubleItTransactionally, Thread.ofVirtual().factory());
+            for (int round = 0; round < rounds; round++)
+                structuredThreads(cache::get, limit, threadFactory);
+            System.out.println("caching: " + threadFactory + "\n    " + cache.stats());
+        }
+    }
+
+    /**
+     * <p>
+     *     Call a {@link Downstream} that fails at <tt>failureRate</tt>, with no retries, with naive retries, and with
+     *     a {@link RetryExecutor} using jittered backoff and a retry budget, printing the amplification, attempts per
+     *     call, and the goodput, calls that succeeded per second.
+     * </p>
+     * <p>
+     *     Naive retries get the most calls through, but at the cost of the most load, which, on a downstream with
+     *     limited capacity, slows down everyone else, while the budget caps the extra load at about 10%.
+     * </p>
+     * @param limit number of calls
+     * @param capacity of the downstream
+     * @param failureRate fraction of downstream calls that fail
+     */
+    public static void retrying(long limit, int capacity, double failureRate) {
+        var virtualThreadFactory = Thread.ofVirtual().factory();
+        var policies = List.of(
+                new RetryExecutor(1, Duration.ZERO, Duration.ZERO, 0.0),
+                RetryExecutor.naive(5),
+                new RetryExecutor(5, Duration.ofMillis(1), Duration.ofMillis(50), 0.1));
+        for (var retry : policies) {
+            var downstream = new Downstream(capacity, simpleLag);
+            downstream.setFailureRate(failureRate);
+            var startTime = System.nanoTime();
+            structuredThreads(value -> {
+                try {
+                    return retry.call(() -> downstream.call(value));
+                } catch (Exception e) {
+                    return -1L;
+                }
+            }, limit, virtualThreadFactory);
+            var elapsed = System.nanoTime() - startTime;
+            System.out.printf("retrying: failure rate = %.0f%%, %s%n    %s, goodput = %.1f calls/second%n",
+                    failureRate * 100, retry, downstream, retry.successes() * 1e9 / elapsed);
+        }
+    }
 
-        try (var structuredExecutor = new StructuredTaskScope.ShutdownOnFailure()) {
-            var result = LongStream.range(0,limit)
-                    .mapToObj(item -> structuredExecutor.fork(() -> counter.count(task,limit)))
-                    .toList();
-            structuredExecutor.join();
-            // return result.stream().map(Future::resultNow).toList();
-            return null;
+    /**
+     * Like {@link #structuredThreads(LongFunction, long, ThreadFactory)}, but fork the tasks at about <tt>rate</tt>
+     * per second, rather than all at once, which is more like requests arriving at a server, where the load does not
+     * go away just because we are slow.
+     * @param task to run
+     * @param limit number of tasks
+     * @param rate tasks per second
+     * @param threadFactory platform or virtual
+     * @return time from the first fork until every task completed
+     */
+    public static Duration pacedThreads(LongFunction<Long> task, long limit, int rate, ThreadFactory threadFactory) {
+        var startTime = System.nanoTime();
+        try (var scope = new StructuredTaskScope<Long>(null, threadFactory)) {
+            for (long index = 0; index < limit; index++) {
+                final var value = index;
+                scope.fork(() -> task.apply(value));
+                var due = startTime + (index + 1) * 1_000_000_000L / rate;
+                var early = due - System.nanoTime();
+                if (early > 1_000_000) new Lag(Duration.ofNanos(early)).sleep();
+            }
+            scope.join();
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Duration.ofNanos(System.nanoTime() - startTime);
+    }
+
+    /**
+     * <p>
+     *     Send <tt>limit</tt> calls to a {@link Downstream}, at about <tt>rate</tt> calls per second, while it has an
+     *     outage from <tt>outageStart</tt> for <tt>outageLength</tt>, during which every call takes 500 ms instead of
+     *     1 ms. Unprotected, every call during the outage parks a Virtual Thread in the downstream queue. We compare
+     *     that with a {@link Bulkhead}, a {@link CircuitBreaker}, and both, printing the peak heap, the most calls in
+     *     flight, the rejections, and the latency of all the calls, rejected or not.
+     * </p>
+     * @param limit number of calls
+     * @param rate calls per second
+     * @param outageStart time from the first call to the start of the outage
+     * @param outageLength how long the outage lasts
+     */
+    public static void outage(long limit, int rate, Duration outageStart, Duration outageLength) {
+        record Policy(String name, UnaryOperator<Callable<Long>> guard, Object guardian) {}
+
+        var virtualThreadFactory = Thread.ofVirtual().factory();
+        var memory = ManagementFactory.getMemoryMXBean();
+        var outageLag = new Lag(Duration.ofMillis(500));
+
+        var bulkhead = new Bulkhead("downstream", 200, Duration.ZERO);
+        var breaker = new CircuitBreaker(100, 20, 0.5, 0.5, Duration.ofMillis(100), Duration.ofMillis(200), 5);
+        var bothBulkhead = new Bulkhead("downstream", 200, Duration.ZERO);
+        var bothBreaker = new CircuitBreaker(100, 20, 0.5, 0.5, Duration.ofMillis(100), Duration.ofMillis(200), 5);
+        var policies = List.of(
+                new Policy("unprotected", callable -> callable, null),
+                new Policy("bulkhead", bulkhead::decorate, bulkhead),
+                new Policy("circuit breaker", breaker::decorate, breaker),
+                new Policy("both", callable -> bothBreaker.decorate(bothBulkhead.decorate(callable)), List.of(bothBreaker, bothBulkhead)));
+
+        for (var policy : policies) {
+            System.gc();
+            var downstream = new Downstream(100, simpleLag);
+            var latencies = new Latencies(Math.toIntExact(limit));
+            var gauge = new ConcurrencyGauge();
+            var failures = new AtomicLong();
+            var peakHeap = new AtomicLong();
+            var baseHeap = memory.getHeapMemoryUsage().getUsed();
+            var sampling = new AtomicBoolean(true);
+            var sampler = Thread.ofPlatform().daemon().start(() -> {
+                while (sampling.get()) {
+                    peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                    new Lag(Duration.ofMillis(10)).sleep();
+                }
+            });
+            var outage = Thread.ofPlatform().daemon().start(() -> {
+                new Lag(outageStart).sleep();
+                downstream.setLag(outageLag);
+                new Lag(outageLength).sleep();
+                downstream.setLag(simpleLag);
+            });
+
+            var elapsed = pacedThreads(value -> {
+                var guarded = policy.guard().apply(() -> downstream.call(value));
+                var callStart = System.nanoTime();
+                gauge.enter();
+                try {
+                    return guarded.call();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    return -1L;
+                }
+                finally {
+                    gauge.exit();
+                    latencies.record(System.nanoTime() - callStart);
+                }
+            }, limit, rate, virtualThreadFactory);
+            sampling.set(false);
+            try {
+                sampler.join();
+                outage.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.printf("outage: %s, elapsed = %d ms, maximum in flight = %d, failed or rejected = %d, peak heap growth = %.1f MB%n    %s%n    latency: %s%n",
+                    policy.name(), elapsed.toMillis(), gauge.maximum(), failures.get(), Math.max(0, peakHeap.get() - baseHeap) / 1e6,
+                    policy.guardian() == null ? downstream : policy.guardian() + ", " + downstream, latencies.summary());
+        }
+    }
+
+    /**
+     * <p>
+     *     Fork <tt>limit</tt> Virtual Threads that all want a permit from the same token bucket
+     *     {@link RateLimiter} at once, so nearly all of them park. The lateness, how long after its permit was due
+     *     each thread actually woke up, shows how accurately parked Virtual Threads are woken, and the achieved rate,
+     *     after the first <tt>burst</tt>, how close we come to the limit, without going over.
+     * </p>
+     * @param limit number of permits, and threads
+     * @param rate permits per second
+     * @param burst bucket size
+     */
+    public static void rateLimiting(long limit, double rate, int burst) {
+        var virtualThreadFactory = Thread.ofVirtual().factory();
+        var limiter = RateLimiter.tokenBucket(rate, burst);
+        var size = Math.toIntExact(limit);
+        var granted = new long[size];
+        var lateness = new Latencies(size);
+        structuredThreads(value -> {
+            var startTime = System.nanoTime();
+            try {
+                var wait = limiter.acquire();
+                granted[(int) value] = System.nanoTime();
+                lateness.record(Math.max(0, granted[(int) value] - startTime - wait.toNanos()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return value;
+        }, limit, virtualThreadFactory);
+
+        Arrays.sort(granted);
+        var first = Math.min(burst, size) - 1;
+        var steadyRate = (size - 1 - first) * 1e9 / Math.max(1, granted[size - 1] - granted[first]);
+        System.out.printf("rateLimiting: %s, achieved rate = %.1f/second%n    lateness: %s%n", limiter, steadyRate, lateness.summary());
+    }
+
+    /**
+     * Like {@link #rateLimiting(long, double, int)}, but with a {@link RateLimiter.Keyed} limit of
+     * <tt>ratePerKey</tt> for each of <tt>keys</tt> keys, so the aggregate rate should be <tt>keys * ratePerKey</tt>.
+     * @param limit number of permits, and threads
+     * @param keys number of keys
+     * @param ratePerKey permits per second, for each key
+     */
+    public static void rateLimitingPerKey(long limit, int keys, double ratePerKey) {
+        var virtualThreadFactory = Thread.ofVirtual().factory();
+        var limiters = new RateLimiter.Keyed(ratePerKey, 1);
+        var startTime = System.nanoTime();
+        structuredThreads(value -> {
+            try {
+                limiters.acquire(value % keys);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return value;
+        }, limit, virtualThreadFactory);
+        var elapsed = System.nanoTime() - startTime;
+        System.out.printf("rateLimitingPerKey: keys = %d, rate per key = %.1f/second, expected rate = %.1f/second, achieved rate = %.1f/second%n",
+                limiters.size(), ratePerKey, keys * ratePerKey, limit * 1e9 / elapsed);
+    }
+
+    /**
+     * <p>
+     *     Offer a {@link Downstream} of <tt>capacity</tt> calls at once, taking 10 ms each, more and more load, at
+     *     each of the <tt>rates</tt> for <tt>seconds</tt>, with and without an {@link AdmissionController} in front of
+     *     it, and print the goodput, calls that succeeded within the <tt>deadline</tt>, per second.
+     * </p>
+     * <p>
+     *     Without admission control, once the rate is past the capacity, the queue grows without bound, so nearly
+     *     every call misses its deadline, and goodput collapses. With admission control, the excess is rejected
+     *     quickly, so goodput should stay flat at about the capacity.
+     * </p>
+     * <p>
+     *     Note: CODEL lets a burst wait up to its <tt>interval</tt>, so the interval is a quarter of the
+     *     <tt>deadline</tt>, leaving room for the call itself, otherwise every call admitted in a burst could still
+     *     miss the deadline. Calls that were not admitted are counted apart from calls that failed downstream.
+     * </p>
+     * @param seconds to run at each rate
+     * @param capacity of the downstream
+     * @param deadline by which a call must succeed to count
+     * @param rates calls per second to offer
+     */
+    public static void overload(int seconds, int capacity, Duration deadline, int... rates) {
+        var virtualThreadFactory = Thread.ofVirtual().factory();
+        var lag = new Lag(Duration.ofMillis(10));
+        var policies = new AdmissionController.Policy[] { null, AdmissionController.Policy.IN_FLIGHT, AdmissionController.Policy.QUEUE_AGE, AdmissionController.Policy.CODEL };
+        for (var rate : rates) {
+            for (var policy : policies) {
+                var downstream = new Downstream(capacity, lag);
+                var admission = policy == null ? null : new AdmissionController(policy, capacity, Duration.ofMillis(10), deadline.dividedBy(4));
+                var limit = (long) rate * seconds;
+                var latencies = new Latencies(Math.toIntExact(limit));
+                var good = new AtomicLong();
+                var rejected = new AtomicLong();
+                var failed = new AtomicLong();
+                var elapsed = pacedThreads(value -> {
+                    var startTime = System.nanoTime();
+                    try {
+                        var result = admission == null ? downstream.call(value) : admission.call(() -> downstream.call(value));
+                        var latency = System.nanoTime() - startTime;
+                        latencies.record(latency);
+                        if (latency <= deadline.toNanos()) good.incrementAndGet();
+                        return result;
+                    } catch (AdmissionController.Rejected e) {
+                        rejected.incrementAndGet();
+                        return -1L;
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        return -1L;
+                    }
+                }, limit, rate, virtualThreadFactory);
+                System.out.printf("overload: offered = %d/second, policy = %s, goodput = %.1f/second, rejected = %d, failed = %d, maximum throughput = %.1f/second%n    admitted latency: %s%n",
+                        rate, policy == null ? "none" : policy, good.get() * 1e9 / elapsed.toNanos(), rejected.get(), failed.get(), downstream.maximumThroughput(), latencies.summary());
+            }
+        }
+    }
+
+    /**
+     * <p>
+     *     Flood a {@link PriorityScheduler} with <tt>batchTasks</tt> background tasks all at once, and while they
+     *     are queued, submit <tt>interactiveTasks</tt> latency critical tasks at <tt>interactiveRate</tt> per second,
+     *     each task taking a 1 ms {@link Lag}, and print the latency of each class, from submit to completion.
+     * </p>
+     * <p>
+     *     In FIFO order, the interactive tasks wait behind the whole flood. By priority, or by deadline with the
+     *     interactive tasks due sooner, they go to the front of the queue, and only wait for a permit.
+     * </p>
+     * <p>
+     *     Note: the flood takes at least <tt>batchTasks / permits</tt> ms to clear, which should be longer than the
+     *     <tt>interactiveTasks / interactiveRate</tt> seconds of interactive tasks, or some of them never compete
+     *     with it.
+     * </p>
+     * @param batchTasks number of background tasks
+     * @param interactiveTasks number of latency critical tasks
+     * @param interactiveRate latency critical tasks per second
+     * @param permits most tasks running at once
+     */
+    public static void prioritizing(int batchTasks, int interactiveTasks, int interactiveRate, int permits) {
+        var virtualThreadFactory = Thread.ofVirtual().factory();
+        for (var order : List.of("fifo", "priority", "deadline")) {
+            var batch = new Latencies(batchTasks);
+            var interactive = new Latencies(interactiveTasks);
+            try (var scheduler = new PriorityScheduler(permits, virtualThreadFactory)) {
+                for (int index = 0; index < batchTasks; index++) {
+                    var submitted = System.nanoTime();
+                    Callable<Long> task = () -> {
+                        simpleLag.sleep();
+                        batch.record(System.nanoTime() - submitted);
+                        return 0L;
+                    };
+                    switch (order) {
+                        case "fifo" -> scheduler.submit(0, task);
+                        case "priority" -> scheduler.submit(1, task);
+                        default -> scheduler.submit(Instant.now().plusSeconds(60), task);
+                    }
+                }
+                pacedThreads(value -> {
+                    var submitted = System.nanoTime();
+                    Callable<Long> task = () -> {
+                        simpleLag.sleep();
+                        return value;
+                    };
+                    var future = switch (order) {
+                        case "fifo", "priority" -> scheduler.submit(0, task);
+                        default -> scheduler.submit(Instant.now().plusMillis(10), task);
+                    };
+                    try {
+                        return future.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        return -1L;
+                    }
+                    finally {
+                        interactive.record(System.nanoTime() - submitted);
+                    }
+                }, interactiveTasks, interactiveRate, virtualThreadFactory);
+                System.out.println("prioritizing: " + order + ", " + scheduler);
+            }
+            System.out.println("    interactive latency: " + interactive.summary() + "\n    batch latency: " + batch.summary());
+        }
+    }
+
+    /**
+     * Per chunk work we aim for with adaptive chunking, so that the cost of forking a thread is amortized.
+     */
+    static final Duration chunkTarget = Duration.ofNanos(100_000);
+
+    /**
+     * <p>
+     *     Like {@link #structuredThreads(LongFunction, long, ThreadFactory)}, but each thread processes a contiguous
+     *     chunk of the range, rather than a single item, which amortizes the cost of the thread over the chunk. For
+     *     tiny tasks like {@link #doubleIt} this is the difference between concurrency costing more than it is worth,
+     *     and not. For blocking tasks, like {@link #doubleItTransactionally}, we want a chunk size of 1, so that every
+     *     blocking call can overlap with the others.
+     * </p>
+     * <p>
+     *     With a <tt>chunkSize</tt> less than 1, the chunk size is adaptive. Items are run in the current thread
+     *     until we have measured at least {@link #chunkTarget} of work, or at least two items if they are slower than
+     *     that, and the cheapest measured item is used to size the chunks so that each one is about
+     *     {@link #chunkTarget} of work, without making fewer chunks than we can run in parallel.
+     * </p>
+     * @param task to run
+     * @param limit number of tasks
+     * @param chunkSize number of items per thread, or less than 1 for adaptive
+     * @param threadFactory platform or virtual
+     * @return results in order
+     */
+    public static List<Long> chunkedThreads(LongFunction<Long> task, long limit, int chunkSize, ThreadFactory threadFactory) {
+        var size = Math.toIntExact(limit);
+        try (var scope = new LongResultScope(size, threadFactory)) {
+            var from = 0;
+            if (chunkSize < 1) {
+                // Measure items one at a time, and go by the cheapest, because the first few items are the
+                // most expensive while the code is still being loaded, linked, and interpreted.
+                var minimum = Long.MAX_VALUE;
+                var elapsed = 0L;
+                for (var sampled = 0; from < size && (sampled < 2 || elapsed < chunkTarget.toNanos()); sampled++) {
+                    var startTime = System.nanoTime();
+                    scope.runRange(from, ++from, task::apply);
+                    var cost = System.nanoTime() - startTime;
+                    minimum = Math.min(minimum, cost);
+                    elapsed += cost;
+                }
+                chunkSize = adaptiveChunkSize(minimum, size - from);
+            }
+            for (; from < size; from += chunkSize) {
+                scope.forkRange(from, Math.min(size, from + chunkSize), task::apply);
+            }
+            scope.join();
+            return LongStream.of(scope.results()).boxed().toList();
+        } catch (InterruptedException | ExecutionException e) {
             e.printStackTrace();
             return Collections.emptyList();
         }
-        finally {
-            System.out.println("threadMaximum = " + threadMaximum + " for " + threadFactory);
-        }
+    }
+
+    /**
+     * @param nanosPerItem measured cost of each item
+     * @param remaining number of items left to fork
+     * @return chunk size of about {@link #chunkTarget}, but small enough to keep all the cores busy
+     */
+    static int adaptiveChunkSize(long nanosPerItem, int remaining) {
+        var targetChunkSize = chunkTarget.toNanos() / Math.max(1, nanosPerItem);
+        var parallelChunkSize = Math.max(1, remaining / (Context.availableProcessors * 4L));
+        return (int) Math.max(1, Math.min(targetChunkSize, parallelChunkSize));
     }
 }
@@ -5,7 +5,6 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
@@ -96,7 +95,7 @@ import java.util.stream.Stream;
  * <p>
  *     For these experiments we warp our primes experiments into a pseudo networking application, where we simulate
  *     farming <tt>isPrime()</tt> out to HTTP Endpoints. This simulation basically wraps the
- *     {@link Experiment10_PrimeStreams#isPrime(long, long, long, AtomicLong, AtomicLong)} calculation with network latency via
+ *     {@link Experiment10_PrimeStreams#isPrime(long, long, long, ConcurrencyGauge)} calculation with network latency via
  *     {@link Thread#sleep(long)}, one to simulate Request Latency, another to simulate Response
  *     Latency.
  * </p>
@@ -223,7 +222,7 @@ import java.util.stream.Stream;
  *     out to some HTTP Endpoint?
  * </p>
  * <p>
- *      Using the same {@link Experiment10_PrimeStreams#isPrime(long, long, long, AtomicLong, AtomicLong)} code as the previous benchmarks,
+ *      Using the same {@link Experiment10_PrimeStreams#isPrime(long, long, long, ConcurrencyGauge)} code as the previous benchmarks,
  *      where we use <tt>isPrime(candiate, minimumLag, maximumLag)</tt> with <tt>minimumLag = 10</tt> ms and
  *      <tt>maximumLag = 30</tt> ms, times 2, or a total of 20 ms minimum and 60 ms maximum, where the actual
  *      lag is random; we simulate some network blocking overhead by using {@link Thread#sleep(long)} before the prime
@@ -291,9 +290,9 @@ public class Experiment10_PrimeStreams {
         System.out.println("PID = " + ProcessHandle.current().pid());
         System.out.println("CPU Cores = " + Runtime.getRuntime().availableProcessors() + '\n');
 
-        suite3(count3); System.out.println("\n\n");
-        suite3(count2); System.out.println("\n\n");
-        suite3(count1);
+        CarrierWatchdog.watch("suite3", () -> suite3(count3)); System.out.println("\n\n");
+        CarrierWatchdog.watch("suite3", () -> suite3(count2)); System.out.println("\n\n");
+        CarrierWatchdog.watch("suite3", () -> suite3(count1));
 
     }
 
@@ -518,26 +517,12 @@ public class Experiment10_PrimeStreams {
 
     public static List<Future<Long>> primeThreads(long limit, ExecutorService executorService) {
 
-        final AtomicLong threadCount  = new AtomicLong(0);
-        final AtomicLong threadMaximum = new AtomicLong(0);
+        final var gauge = new ConcurrencyGauge();
 
         try (var closableExecutorService = executorService) {
             var futureResults = LongStream.iterate(3, x -> x < limit, x -> x + 2)
                     .mapToObj(candidate -> {
-                        return closableExecutorService.submit(() -> {
-                            try {
-                                var preCount = threadCount.getAndIncrement();
-                                return isPrime(candidate, 10, 30, null, null) ? candidate : null;
-                            }
-                            finally {
-                                var postCount = threadCount.getAndDecrement();
-                                var maximum = 0L;
-                                do {
-                                    maximum = threadMaximum.get();
-                                    if (postCount <= maximum) break;
-                                } while (!threadMaximum.compareAndSet(maximum, postCount));
-                            }
-                        });
+                        return closableExecutorService.submit(() -> isPrime(candidate, 10, 30, gauge) ? candidate : null);
                     }).collect(Collectors.toList());
 
 //            var result = futureResults.stream().filter(x -> {
@@ -554,13 +539,13 @@ public class Experiment10_PrimeStreams {
             return futureResults;
         }
         finally {
-            System.out.println("primeThreads: threadMaximum = " + threadMaximum.get());
+            System.out.println("primeThreads: threadMaximum = " + gauge.maximum());
         }
     }
 
     public static long[] serialPrimes(long limit) {
         var primes = LongStream.iterate(3, x -> x < limit, x -> x + 2)
-                .filter(candidate -> isPrime(candidate, 0, 0, null, null)).toArray();
+                .filter(candidate -> isPrime(candidate, 0, 0, null)).toArray();
 
         System.out.println("serialPrimes: primes found = " + primes.length);
         return primes;
@@ -568,7 +553,7 @@ public class Experiment10_PrimeStreams {
 
     public static long[] serialPrimes2(long limit) {
         var primes = LongStream.iterate(3, x -> x < limit, x -> x + 2)
-                .filter(candidate -> isPrime(candidate, 10, 30, null, null)).toArray();
+                .filter(candidate -> isPrime(candidate, 10, 30, null)).toArray();
 
         // System.out.println("serialPrimes2: primes found = " + primes.length);
         return primes;
@@ -577,7 +562,7 @@ public class Experiment10_PrimeStreams {
     public static void parallelPrimes(long limit) {
         var primes = LongStream.iterate(3, x -> x < limit, x -> x + 2)
                 .parallel()
-                .filter(candidate -> isPrime(candidate, 0, 0, null, null)).toArray();
+                .filter(candidate -> isPrime(candidate, 0, 0, null)).toArray();
 
         //System.out.println("parallelPrimes: primes found = " + primes.length);
     }
@@ -585,7 +570,7 @@ public class Experiment10_PrimeStreams {
     public static void parallelPrimes2(long limit) {
         var primes = LongStream.iterate(3, x -> x < limit, x -> x + 2)
                 .parallel()
-                .filter(candidate -> isPrime(candidate, 10, 30, null, null)).toArray();
+                .filter(candidate -> isPrime(candidate, 10, 30, null)).toArray();
 
         // System.out.println("parallelPrimes2: primes found = " + primes.length);
     }
@@ -596,7 +581,7 @@ public class Experiment10_PrimeStreams {
             var primes = executorService.submit(() ->
                     LongStream.iterate(3, x -> x < limit, x -> x + 2)
                             .parallel()
-                            .filter(candidate -> isPrime(candidate, 0, 0, null, null)).toArray()
+                            .filter(candidate -> isPrime(candidate, 0, 0, null)).toArray()
             ).get();
 
             //System.out.println("virtualPrimes: primes found = " + primes.length);
@@ -614,7 +599,7 @@ public class Experiment10_PrimeStreams {
             var primes = executorService.submit(() ->
                     LongStream.iterate(3, x -> x < limit, x -> x + 2)
                             .parallel()
-                            .filter(candidate -> isPrime(candidate, 10, 30, null, null)).toArray()
+                            .filter(candidate -> isPrime(candidate, 10, 30, null)).toArray()
             ).get();
 
             //System.out.println("virtualPrimes2: primes found = " + primes.length);
@@ -632,7 +617,7 @@ public class Experiment10_PrimeStreams {
             var tasks = LongStream.iterate(3, x -> x < limit, x -> x + 2)
                     .mapToObj(candidate -> {
                         Callable<Optional<Long>> l = () -> {
-                            if (isPrime(candidate, 0, 0, null, null)) return Optional.of(candidate);
+                            if (isPrime(candidate, 0, 0, null)) return Optional.of(candidate);
                             else return Optional.empty();
                         };
                         return l;
@@ -664,7 +649,7 @@ public class Experiment10_PrimeStreams {
             var tasks = LongStream.iterate(3, x -> x < limit, x -> x + 2)
                     .mapToObj(candidate -> {
                         Callable<Optional<Long>> l = () -> {
-                            if (isPrime(candidate, 10, 30, null, null)) return Optional.of(candidate);
+                            if (isPrime(candidate, 10, 30, null)) return Optional.of(candidate);
                             else return Optional.empty();
                         };
                         return l;
@@ -695,7 +680,7 @@ public class Experiment10_PrimeStreams {
         try (var executorService = Executors.newThreadPerTaskExecutor(threadFactory)) {
             var tasks = LongStream.iterate(3, x -> x < limit, x -> x + 2)
                     .mapToObj(candidate -> {
-                        return executorService.submit(() -> isPrime(candidate, 0, 0, null, null) ? candidate : null);
+                        return executorService.submit(() -> isPrime(candidate, 0, 0, null) ? candidate : null);
                     }).collect(Collectors.toList());
 
             var result = tasks.stream().filter(x -> {
@@ -720,7 +705,7 @@ public class Experiment10_PrimeStreams {
         try (var executorService = Executors.newThreadPerTaskExecutor(threadFactory)) {
             var tasks = LongStream.iterate(3, x -> x < limit, x -> x + 2)
                     .mapToObj(candidate -> {
-                        return executorService.submit(() -> isPrime(candidate, 10, 30, null, null) ? candidate : null);
+                        return executorService.submit(() -> isPrime(candidate, 10, 30, null) ? candidate : null);
                     }).collect(Collectors.toList());
 
 
@@ -737,15 +722,64 @@ public class Experiment10_PrimeStreams {
         }
     }
 
+    /**
+     * Like {@link #futurePrimes22(long, ThreadFactory)}, but rather than eagerly forking one task per candidate,
+     * and keeping every {@link Future}, candidates are forked lazily via a {@link LongResultScope} so that at most
+     * <tt>permits</tt> tasks are in flight at once.
+     * @param limit candidates are less than this
+     * @param permits maximum number of tasks in flight
+     * @param threadFactory platform or virtual
+     * @return primes found
+     */
+    public static long[] boundedPrimes(long limit, int permits, ThreadFactory threadFactory) {
+        var candidates = (int) Math.max(0, (limit - 2) / 2);
+        try (var scope = new LongResultScope(candidates, permits, threadFactory)) {
+            scope.forkAll(
+                    LongStream.iterate(3, x -> x < limit, x -> x + 2),
+                    candidate -> isPrime(candidate, 10, 30, null) ? candidate : 0);
+            scope.join();
+            return LongStream.of(scope.results()).filter(candidate -> candidate > 0).toArray();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return new long[0];
+        }
+    }
+
+    /**
+     * Compare the peak heap and throughput of eagerly forking every candidate, {@link #futurePrimes22(long, ThreadFactory)},
+     * against lazily forking at most <tt>permits</tt> at a time, {@link #boundedPrimes(long, int, ThreadFactory)}.
+     * @param limit candidates are less than this
+     * @param permits maximum number of tasks in flight for the bounded approach
+     */
+    public static void suite4(long limit, int permits) {
+        var candidates = Math.max(0, (limit - 2) / 2);
+
+        Context.resetPeakHeap();
+        var time1 = System.currentTimeMillis();
+        futurePrimes22(limit, virtualThreadFactory);
+        var time2 = System.currentTimeMillis();
+        var eagerHeap = Context.peakHeap();
+
+        Context.resetPeakHeap();
+        var time3 = System.currentTimeMillis();
+        boundedPrimes(limit, permits, virtualThreadFactory);
+        var time4 = System.currentTimeMillis();
+        var boundedHeap = Context.peakHeap();
+
+        System.out.printf("eager   futurePrimes22 %,12d candidates %,8d ms %,12.1f candidates/second peak heap %,15d bytes%n",
+                candidates, time2 - time1, candidates * 1000.0 / Math.max(1, time2 - time1), eagerHeap);
+        System.out.printf("bounded %,6d permits  %,12d candidates %,8d ms %,12.1f candidates/second peak heap %,15d bytes%n",
+                permits, candidates, time4 - time3, candidates * 1000.0 / Math.max(1, time4 - time3), boundedHeap);
+    }
+
     public static void futurePrimes33(long limit, ThreadFactory threadFactory) {
 
-        final AtomicLong threadCount  = new AtomicLong(0);
-        final AtomicLong threadMaximum = new AtomicLong(0);
+        final var gauge = new ConcurrencyGauge();
 
         try (var executorService = Executors.newCachedThreadPool(threadFactory)) {
             var tasks = LongStream.iterate(3, x -> x < limit, x -> x + 2)
                     .mapToObj(candidate -> {
-                        return executorService.submit(() -> isPrime(candidate, 10, 30, threadCount, threadMaximum) ? candidate : null);
+                        return executorService.submit(() -> isPrime(candidate, 10, 30, gauge) ? candidate : null);
                     }).collect(Collectors.toList());
 
             var result = tasks.stream().filter(x -> {
@@ -760,7 +794,7 @@ public class Experiment10_PrimeStreams {
             });
         }
 
-        System.out.println("futurePrimes33: threadMaximum = " + threadMaximum.get());
+        System.out.println("futurePrimes33: threadMaximum = " + gauge.maximum());
     }
 
 
@@ -772,14 +806,15 @@ public class Experiment10_PrimeStreams {
      * @param candidate number to test for factors
      * @param minimumLag minimum time in ms to wait simulating network overhead
      * @param maximumLag maximum time in ms to wait simulating network overhead
+     * @param gauge to count this task in flight, or null
      * @return true if Prime, false if not
      * @see <a href="https://stackoverflow.com/questions/69842535/is-there-any-benefit-to-thead-onspinwait-while-doing-cpu-bound-work">Is there any benefit to Thead.onSpinWait() while doing CPU Bound work?</a>
      */
-    static boolean isPrime(long candidate, long minimumLag, long maximumLag, AtomicLong threadCount, AtomicLong threadMaximum) {
+    static boolean isPrime(long candidate, long minimumLag, long maximumLag, ConcurrencyGauge gauge) {
         var lag = new Lag(Duration.ofMillis(minimumLag), Duration.ofMillis(maximumLag));
 
         try {
-            if (threadMaximum != null) threadCount.getAndIncrement();
+            if (gauge != null) gauge.enter();
 
             lag.sleep();
 
@@ -798,14 +833,7 @@ public class Experiment10_PrimeStreams {
             return true;
         }
         finally {
-            if (threadCount != null) {
-                var count = threadCount.getAndDecrement();
-                var maximum = 0L;
-                do {
-                    maximum = threadMaximum.get();
-                    if (count <= maximum) break;
-                } while (!threadMaximum.compareAndSet(maximum, count));
-            }
+            if (gauge != null) gauge.exit();
         }
     }
 }
@@ -2,10 +2,12 @@ package net.kolotyluk.loom;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.time.Duration;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.BiFunction;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -293,9 +295,10 @@ public class Experiment11_PrimeThreads {
                 
                 """, pid, availableProcessors, Runtime.getRuntime().maxMemory());
 
-         suite3(limit1); System.out.println("\n\n");
-         suite3(limit2); System.out.println("\n\n");
-         suite3(limit3);  System.out.println("\n\n");
+         CarrierWatchdog.watch("suite3", () -> suite3(limit1)); System.out.println("\n\n");
+         CarrierWatchdog.watch("suite3", () -> suite3(limit2)); System.out.println("\n\n");
+         CarrierWatchdog.watch("suite3", () -> suite3(limit3));  System.out.println("\n\n");
+         ordering(10_000, 1000, 100);
         // suite3(50_000_000, virtualThreadFactory);
     }
 
@@ -311,6 +314,11 @@ public class Experiment11_PrimeThreads {
         var platformSingleThreadTaskExecutor = Executors.newSingleThreadExecutor(platformThreadFactory);
         var platformThreadPerTaskExecutor    = Executors.newThreadPerTaskExecutor(platformThreadFactory);
 
+        // Candidates have no order to keep, so these go round robin, and this row is the cost of the lanes themselves,
+        // see ordering() for what they buy. Not a single thread executor, at 20 ms to 60 ms per candidate, that would
+        // take days for limit3.
+        var virtualPartitionedExecutor       = new PartitionedExecutor(10_000, virtualThreadFactory);
+
         var time1 = System.currentTimeMillis();
 
         var r1 = primeThreads(limit, virtualCachedThreadPool);
@@ -347,11 +355,20 @@ public class Experiment11_PrimeThreads {
 
         var time5 = System.currentTimeMillis();
 
+        var r5 = primeThreads(limit, virtualPartitionedExecutor);
+
+        var time5a = System.currentTimeMillis();
+
+        var a5 = getPrimes(r5);
+
+        var time6 = System.currentTimeMillis();
+
 
         System.out.println("virtualCachedThreadPool          " + (time2 - time1) + ", " + (time1a - time1) + ", " + (time2 - time1a));
         System.out.println("virtualThreadPerTaskExecutor     " + (time3 - time2) + ", " + (time2a - time2) + ", " + (time3 - time2a));
         System.out.println("platformCachedThreadPool         " + (time4 - time3) + ", " + (time3a - time3) + ", " + (time4 - time3a));
         System.out.println("platformThreadPerTaskExecutor    " + (time5 - time4) + ", " + (time4a - time4) + ", " + (time5 - time4a));
+        System.out.println("virtualPartitionedExecutor       " + (time6 - time5) + ", " + (time5a - time5) + ", " + (time6 - time5a));
 
     }
 
@@ -469,47 +486,25 @@ public class Experiment11_PrimeThreads {
 
     }
 
-    static Long isPrimeOld(long candidate, AtomicLong taskCount, AtomicLong taskMaximum) {
-        var preCount = taskCount.getAndIncrement();
-        //System.out.printf("candidate = %d, preCount = %d, taskCount = %d\n", candidate, preCount, taskCount.get());
-
-        var result = Primes.isPrime(candidate, 10, 30) ? candidate : null;
-
-        var postCount = taskCount.getAndDecrement();
-
-        long maximum = 0L;
-        do {
-            maximum = taskMaximum.get();
-            //System.out.printf("postCount = %d, maximum = %d\n", postCount, maximum);
-            if (postCount <= maximum) break;
-        } while (!taskMaximum.compareAndSet(maximum, postCount));
-
-        return result;
+    static Long isPrimeOld(long candidate, ConcurrencyGauge gauge) {
+        gauge.enter();
+        try {
+            return Primes.isPrime(candidate, 10, 30) ? candidate : null;
+        }
+        finally {
+            gauge.exit();
+        }
     }
 
 
     public static List<Future<Long>> primeThreads(long limit, ExecutorService executorService) {
 
-        final AtomicLong threadCount  = new AtomicLong(0);
-        final AtomicLong threadMaximum = new AtomicLong(0);
+        final var gauge = new ConcurrencyGauge();
 
         try (var closableExecutorService = executorService) {
             var futureResults = LongStream.iterate(3, x -> x < limit, x -> x + 2)
                     .mapToObj(candidate -> {
-                        return closableExecutorService.submit(() -> {
-                            try {
-                                var preCount = threadCount.getAndIncrement();
-                                return isPrime(candidate, 10, 30, null, null) ? candidate : null;
-                            }
-                            finally {
-                                var postCount = threadCount.getAndDecrement();
-                                var maximum = 0L;
-                                do {
-                                    maximum = threadMaximum.get();
-                                    if (postCount <= maximum) break;
-                                } while (!threadMaximum.compareAndSet(maximum, postCount));
-                            }
-                        });
+                        return closableExecutorService.submit(() -> isPrime(candidate, 10, 30, gauge) ? candidate : null);
                     }).collect(Collectors.toList());
 
 //            var result = futureResults.stream().filter(x -> {
@@ -526,11 +521,55 @@ public class Experiment11_PrimeThreads {
             return futureResults;
         }
         finally {
-            System.out.println("primeThreads: threadMaximum = " + threadMaximum.get());
+            System.out.println("primeThreads: threadMaximum = " + gauge.maximum());
         }
     }
 
 
+    /**
+     * <p>
+     *     Submit <tt>limit</tt> updates, each taking a 1 ms {@link Lag}, round robin over <tt>keys</tt> keys, where
+     *     the updates to each key must be applied in the order submitted, and count how many are applied out of
+     *     order, and how long it takes, with
+     * </p>
+     * <ul>
+     *     <li>a single thread executor, always in order, one at a time</li>
+     *     <li>a {@link PartitionedExecutor} with <tt>lanes</tt> lanes, in order per key, <tt>lanes</tt> at a time</li>
+     *     <li>a Virtual Thread per task, all at once, in no particular order</li>
+     * </ul>
+     * @param limit number of updates
+     * @param keys number of keys
+     * @param lanes number of partitions
+     */
+    public static void ordering(long limit, int keys, int lanes) {
+        var lag = new Lag(Duration.ofMillis(1));
+        var executors = List.<ExecutorService>of(
+                Executors.newSingleThreadExecutor(virtualThreadFactory),
+                new PartitionedExecutor(lanes, virtualThreadFactory),
+                Executors.newThreadPerTaskExecutor(virtualThreadFactory));
+        for (var executor : executors) {
+            var applied = new AtomicLongArray(keys);
+            var outOfOrder = new AtomicLong();
+            var startTime = System.nanoTime();
+            try (executor) {
+                for (long index = 0; index < limit; index++) {
+                    final var update = index;
+                    final var key = (int) (index % keys);
+                    Runnable task = () -> {
+                        lag.sleep();
+                        if (applied.getAndSet(key, update) > update) outOfOrder.incrementAndGet();
+                    };
+                    if (executor instanceof PartitionedExecutor partitioned)
+                        partitioned.execute(key, task);
+                    else
+                        executor.execute(task);
+                }
+            }
+            System.out.printf("ordering: %s, elapsed = %d ms, out of order = %d%n",
+                    executor.getClass().getSimpleName(), (System.nanoTime() - startTime) / 1_000_000, outOfOrder.get());
+        }
+    }
+
     public static List<Future<Long>> primeThreadsOld(long limit, ExecutorService executorService) {
 
         // System.out.println("executorService = " + executorService.toString());
@@ -0,0 +1,174 @@
+package net.kolotyluk.loom;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+/**
+ * <h1>Experiment 12 - Recursion</h1>
+ * <p>
+ *     The previous experiments fan out flat, one owner forking a task per prime candidate, or per transaction. Here
+ *     we split the work recursively instead, divide and conquer, with {@link StructuredRecursion}, and compare
+ *     nested {@link jdk.incubator.concurrent.StructuredTaskScope}s on Virtual Threads with the equivalent
+ *     {@link java.util.concurrent.RecursiveTask} on the {@link ForkJoinPool#commonPool()}, and with no parallelism
+ *     at all, on three problems
+ * </p>
+ * <dl>
+ *     <dt>Prime Count</dt>
+ *     <dd>How many primes are there below <tt>size</tt>? Trial division, so the larger candidates cost more, and
+ *     the right half of any range is more work than the left.</dd>
+ *     <dt>Sum</dt>
+ *     <dd>The sum of a <tt>long[]</tt>, almost no work per item, so this is mostly the overhead of splitting.</dd>
+ *     <dt>Merge Sort</dt>
+ *     <dd>Sort each leaf range with {@link Arrays#sort(long[], int, int)}, then merge the sorted halves on the way
+ *     back up, so the combine step is as much work as the leaves.</dd>
+ * </dl>
+ * <p>
+ *     Each runs over a few grain sizes, where the grain is the largest range solved without splitting, so the
+ *     depth of the recursion is about <tt>log2(size / grain)</tt>.
+ * </p>
+ * <p>
+ *     See <tt>benchmarks/DivideAndConquer</tt> for JMH benchmarks of the same, by grain and depth.
+ * </p>
+ */
+public class Experiment12_Recursion {
+
+    static final ThreadFactory virtualThreadFactory = Thread.ofVirtual().factory();
+
+    /**
+     * @param grain largest range to solve without splitting
+     * @param maximumDepth most times to split
+     * @param threadFactory for the structured subtasks
+     * @return count of the primes in a range
+     */
+    public static StructuredRecursion<Long> primeCount(long grain, int maximumDepth, ThreadFactory threadFactory) {
+        return new StructuredRecursion<>(grain, maximumDepth, threadFactory, (from, to) -> {
+            long count = 0;
+            for (long candidate = Math.max(2, from); candidate < to; candidate++)
+                if (Primes.isPrime(candidate)) count++;
+            return count;
+        }, Long::sum);
+    }
+
+    /**
+     * @param array to sum
+     * @param grain largest range to solve without splitting
+     * @param maximumDepth most times to split
+     * @param threadFactory for the structured subtasks
+     * @return sum of a range of the array
+     */
+    public static StructuredRecursion<Long> sum(long[] array, long grain, int maximumDepth, ThreadFactory threadFactory) {
+        return new StructuredRecursion<>(grain, maximumDepth, threadFactory, (from, to) -> {
+            long sum = 0;
+            for (int index = (int) from; index < to; index++) sum += array[index];
+            return sum;
+        }, Long::sum);
+    }
+
+    /**
+     * A range of the array that has been sorted.
+     * @param from inclusive start of the range
+     * @param to exclusive end of the range
+     */
+    public record Sorted(int from, int to) {}
+
+    /**
+     * Merge sort, where the leaves sort their range in place, and the combine step merges two adjacent sorted
+     * ranges via <tt>buffer</tt>. Concurrent merges are always of disjoint ranges, so they never touch the same
+     * items of either array.
+     * @param array to sort
+     * @param buffer at least as long as <tt>array</tt>
+     * @param grain largest range to solve without splitting
+     * @param maximumDepth most times to split
+     * @param threadFactory for the structured subtasks
+     * @return the sorted range
+     */
+    public static StructuredRecursion<Sorted> mergeSort(long[] array, long[] buffer, long grain, int maximumDepth, ThreadFactory threadFactory) {
+        return new StructuredRecursion<>(grain, maximumDepth, threadFactory, (from, to) -> {
+            Arrays.sort(array, (int) from, (int) to);
+            return new Sorted((int) from, (int) to);
+        }, (left, right) -> {
+            int l = left.from(), r = right.from(), b = left.from();
+            while (l < left.to() && r < right.to())
+                buffer[b++] = array[l] <= array[r] ? array[l++] : array[r++];
+            while (l < left.to()) buffer[b++] = array[l++];
+            while (r < right.to()) buffer[b++] = array[r++];
+            System.arraycopy(buffer, left.from(), array, left.from(), right.to() - left.from());
+            return new Sorted(left.from(), right.to());
+        });
+    }
+
+    public static void main(String args[]) throws InterruptedException, ExecutionException {
+        System.out.println("Hello Recursion");
+        System.out.println("PID = " + ProcessHandle.current().pid());
+        System.out.println("CPU Cores = " + Runtime.getRuntime().availableProcessors() + '\n');
+
+        primeCounting(10_000_000, 1_000, 10_000, 100_000, 1_000_000);
+        summing(20_000_000, 1_000, 10_000, 100_000, 1_000_000); // 160 MB, fits the default heap
+        sorting(10_000_000, 1_000, 10_000, 100_000, 1_000_000);
+    }
+
+    public static void primeCounting(long size, long... grains) throws InterruptedException, ExecutionException {
+        for (var grain : grains) {
+            var recursion = primeCount(grain, Integer.MAX_VALUE, virtualThreadFactory);
+            compare("primeCount", size, grain,
+                    () -> recursion.sequential(0, size),
+                    () -> recursion.forkJoin(0, size, ForkJoinPool.commonPool()),
+                    () -> compute(recursion, size));
+            System.out.println(recursion);
+        }
+    }
+
+    public static void summing(int size, long... grains) throws InterruptedException, ExecutionException {
+        var array = new Random(0).longs(size, 0, 1000).toArray();
+        for (var grain : grains) {
+            var recursion = sum(array, grain, Integer.MAX_VALUE, virtualThreadFactory);
+            compare("sum", size, grain,
+                    () -> recursion.sequential(0, size),
+                    () -> recursion.forkJoin(0, size, ForkJoinPool.commonPool()),
+                    () -> compute(recursion, size));
+            System.out.println(recursion);
+        }
+    }
+
+    public static void sorting(int size, long... grains) throws InterruptedException, ExecutionException {
+        var unsorted = new Random(0).longs(size).toArray();
+        var expected = unsorted.clone();
+        Arrays.sort(expected);
+        var array = new long[size];
+        var buffer = new long[size];
+        for (var grain : grains) {
+            var recursion = mergeSort(array, buffer, grain, Integer.MAX_VALUE, virtualThreadFactory);
+            // Each run sorts a fresh copy, so what we compare is whether the array came out sorted
+            compare("mergeSort", size, grain,
+                    () -> { System.arraycopy(unsorted, 0, array, 0, size); recursion.sequential(0, size); return Arrays.equals(array, expected); },
+                    () -> { System.arraycopy(unsorted, 0, array, 0, size); recursion.forkJoin(0, size, ForkJoinPool.commonPool()); return Arrays.equals(array, expected); },
+                    () -> { System.arraycopy(unsorted, 0, array, 0, size); compute(recursion, size); return Arrays.equals(array, expected); });
+            System.out.println(recursion);
+        }
+    }
+
+    static <R> R compute(StructuredRecursion<R> recursion, long size) {
+        try {
+            return recursion.compute(0, size);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static <R> void compare(String name, long size, long grain, Supplier<R> sequential, Supplier<R> forkJoin, Supplier<R> structured) {
+        var time1 = System.nanoTime();
+        var result1 = sequential.get();
+        var time2 = System.nanoTime();
+        var result2 = forkJoin.get();
+        var time3 = System.nanoTime();
+        var result3 = structured.get();
+        var time4 = System.nanoTime();
+        System.out.printf("%s: size = %d, grain = %d, sequential = %d ms, forkJoin = %d ms, structured = %d ms, results = %s, %s, %s%n",
+                name, size, grain, (time2 - time1) / 1_000_000, (time3 - time2) / 1_000_000, (time4 - time3) / 1_000_000,
+                result1, result2, result3);
+    }
+}
@@ -0,0 +1,167 @@
+package net.kolotyluk.loom;
+
+import jdk.incubator.concurrent.StructuredTaskScope;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>Hedged Requests</h1>
+ * <p>
+ *     In the transactional experiments, most calls take about as long as the typical {@link Lag}, but the tail
+ *     latency is set by the few unlucky ones. If a call is taking longer than nearly all calls do, it is likely one
+ *     of the unlucky ones, and the same request sent again will likely come back sooner. This is the <em>hedged
+ *     request</em> of Dean and Barroso's
+ *     <a href="https://research.google/pubs/pub40801/">The Tail at Scale</a>.
+ * </p>
+ * <pre>
+ * var hedged = new HedgedExecutor(0.95, Duration.ofMillis(10), virtualThreadFactory);
+ * . . .
+ * var result = hedged.call(() -> backend.get(key));
+ * . . .
+ * System.out.println(hedged);  // how many calls were hedged
+ * </pre>
+ * <p>
+ *     Each call forks the request in a {@link StructuredTaskScope.ShutdownOnSuccess}, and waits up to the current
+ *     hedge delay. If it has not completed by then, a backup request is forked in the same scope, and whichever
+ *     finishes first wins, the scope shutting down and interrupting the other.
+ * </p>
+ * <h2>Hedge Delay</h2>
+ * <p>
+ *     The delay is the <tt>percentile</tt> of recent call latencies, kept in a small ring buffer, and
+ *     recomputed every so often rather than on every call. At the 95th percentile, only about 5% of calls are
+ *     hedged, so the extra load is about 5%, while the tail beyond the 95th percentile mostly disappears.
+ * </p>
+ * <p>
+ *     Note: what we want is the latency of the first request alone, unhedged, but when the backup wins, the first
+ *     request is interrupted, so we never learn how long it would have taken, only that it was still running when
+ *     the call completed. So each call records one latency, from the start of the first request to the end of the
+ *     call, which is the latency of the first request when it wins, and a lower bound of it when the backup wins.
+ *     Recording only the winning attempts would record the fast backups, and leave out the slow requests they
+ *     replaced, so the delay would keep creeping down. Recording the losers as they are cancelled would record
+ *     a backup that loses as taking however little time it had left, biasing the delay down too.
+ * </p>
+ */
+public class HedgedExecutor {
+
+    /**
+     * Number of recent latencies the hedge delay is computed from.
+     */
+    static final int window = 1024;
+
+    /**
+     * Recompute the hedge delay every this many attempts.
+     */
+    static final int recomputeInterval = 128;
+
+    final double percentile;
+    final ThreadFactory threadFactory;
+    final long[] latencies = new long[window];
+    final AtomicLong attempts = new AtomicLong();
+    final AtomicLong recorded = new AtomicLong();
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong hedges = new AtomicLong();
+    final AtomicLong backupWins = new AtomicLong();
+    volatile long hedgeDelay;
+
+    /**
+     * @param percentile of recent latency after which to hedge, such as 0.95
+     * @param initialDelay hedge delay until enough latencies have been recorded
+     * @param threadFactory to create the request threads
+     */
+    public HedgedExecutor(double percentile, Duration initialDelay, ThreadFactory threadFactory) {
+        if (percentile <= 0.0 || percentile >= 1.0) throw new IllegalArgumentException("percentile must be between 0 and 1");
+        this.percentile = percentile;
+        this.threadFactory = threadFactory;
+        this.hedgeDelay = initialDelay.toNanos();
+    }
+
+    /**
+     * Call <tt>request</tt>, and if it takes longer than the hedge delay, call it again, returning whichever result
+     * comes first.
+     * @param request to make, which must be safe to make twice
+     * @return first result
+     * @param <T> type of result
+     * @throws ExecutionException if every attempt failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public <T> T call(Callable<T> request) throws ExecutionException, InterruptedException {
+        calls.incrementAndGet();
+        var startTime = System.nanoTime();
+        try (var scope = new StructuredTaskScope.ShutdownOnSuccess<T>(null, threadFactory)) {
+            var done = new AtomicBoolean();
+            scope.fork(() -> attempt(request, done, false));
+            try {
+                scope.joinUntil(Instant.now().plusNanos(hedgeDelay));
+            } catch (TimeoutException e) {
+                hedges.incrementAndGet();
+                scope.fork(() -> attempt(request, done, true));
+                scope.join();
+            }
+            return scope.result();
+        }
+        finally {
+            record(System.nanoTime() - startTime);
+        }
+    }
+
+    <T> T attempt(Callable<T> request, AtomicBoolean done, boolean backup) throws Exception {
+        attempts.incrementAndGet();
+        var result = request.call();
+        if (done.compareAndSet(false, true) && backup) backupWins.incrementAndGet();
+        return result;
+    }
+
+    void record(long nanos) {
+        var count = recorded.getAndIncrement();
+        latencies[(int) (count % window)] = nanos;
+        if (count >= window / 8 && count % recomputeInterval == 0) {
+            // Racy reads of the ring buffer are fine, a few stale entries hardly move a percentile
+            var sorted = Arrays.copyOf(latencies, (int) Math.min(count + 1, window));
+            Arrays.sort(sorted);
+            hedgeDelay = Latencies.percentile(sorted, percentile);
+        }
+    }
+
+    /**
+     * @return current delay before hedging
+     */
+    public Duration hedgeDelay() {
+        return Duration.ofNanos(hedgeDelay);
+    }
+
+    /**
+     * @return calls made via {@link #call(Callable)}
+     */
+    public long calls() {
+        return calls.get();
+    }
+
+    /**
+     * @return requests actually made, including backups
+     */
+    public long attempts() {
+        return attempts.get();
+    }
+
+    /**
+     * @return fraction of extra requests over calls, the cost of hedging
+     */
+    public double extraLoad() {
+        var calls = this.calls.get();
+        return calls == 0 ? 0.0 : (double) hedges.get() / calls;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HedgedExecutor[calls = %d, hedged = %d, backup won = %d, extra load = %.1f%%, hedge delay = %.3f ms]",
+                calls.get(), hedges.get(), backupWins.get(), extraLoad() * 100, hedgeDelay / 1e6);
+    }
+}
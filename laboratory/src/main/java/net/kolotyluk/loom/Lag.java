@@ -1,7 +1,10 @@
 package net.kolotyluk.loom;
 
 import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Consumer;
+import java.util.random.RandomGenerator;
 
 import kr.pe.kwonnam.slf4jlambda.LambdaLogger;
 import kr.pe.kwonnam.slf4jlambda.LambdaLoggerFactory;
@@ -21,6 +24,8 @@ import kr.pe.kwonnam.slf4jlambda.LambdaLoggerFactory;
  * definiteLag.sleep(); // sleep for 1 millisecond
  * randomLag.sleep();   // sleep randomly between 1 and 10 milliseconds
  * randomLag.sleep(cause -> Throw cause); // handle interrupt
+ * definiteLag.sleepPinned(new Object());       // sleep inside synchronized, pinning the carrier
+ * definiteLag.sleepLocked(new ReentrantLock()); // sleep holding a lock, which does not pin
  *     </pre>
  *     But, we don't <em>always</em> want to deal with the normal try-catch-InterruptedException boilerplate.
  *     This boilerplate is required as a consequence of Java
@@ -35,6 +40,11 @@ import kr.pe.kwonnam.slf4jlambda.LambdaLoggerFactory;
  * <p>
  *     When we create a Lag object, and pass it as an argument to some other method or function.
  * </p>
+ * <h2>Virtual Time</h2>
+ * <p>
+ *     Inside {@link VirtualClock#simulate(java.util.function.LongFunction, long, long)} a Lag does not sleep, it
+ *     advances a seeded virtual clock, so large transactional experiments can be run quickly and reproducibly.
+ * </p>
  * <h1>Records</h1>
  * <p>
  *     This API uses Java Records rather and a Java Class because
@@ -109,11 +119,21 @@ public record Lag(Duration minimum, Duration maximum) {
      * @return new duration.
      */
     public Duration getDuration() {
+        return getDuration(ThreadLocalRandom.current());
+    }
+
+    /**
+     * Compute a random Duration from the given generator, unless it's definite. Used by {@link VirtualClock}
+     * so that simulations are reproducible.
+     * @param random generator to draw from
+     * @return new duration.
+     */
+    public Duration getDuration(RandomGenerator random) {
         if (minimum.isZero() && maximum.isZero()) return Duration.ZERO;
         final var difference = maximum.minus(minimum);
         return difference.isZero()
                 ? minimum
-                : minimum.plus(Duration.ofNanos((long) Math.nextUp(Math.random() * difference.getNano())));
+                : minimum.plus(Duration.ofNanos((long) Math.nextUp(random.nextDouble() * difference.toNanos())));
     }
 
     /**
@@ -123,6 +143,10 @@ public record Lag(Duration minimum, Duration maximum) {
      * <p>
      *     Note: this does not throw InterruptedException.
      * </p>
+     * <p>
+     *     When running under {@link VirtualClock#simulate(java.util.function.LongFunction, long, long)} this does
+     *     not sleep at all, it just advances the virtual clock.
+     * </p>
      * @return Duration of time chosen to sleep for.
      * @throws IllegalArgumentException if maximum is less than minimum
      */
@@ -141,6 +165,8 @@ public record Lag(Duration minimum, Duration maximum) {
      * @throws IllegalArgumentException if maximum is less than minimum
      */
     public Duration sleep(Consumer<InterruptedException> exceptionHandler) {
+        var clock = VirtualClock.current();
+        if (clock != null) return clock.advance(this);
         var duration = getDuration();
         try {
             if (Thread.currentThread().isInterrupted())
@@ -169,5 +195,52 @@ public record Lag(Duration minimum, Duration maximum) {
         }
     }
 
+    /**
+     * <p>
+     *     Call {@link #sleep()} while holding the monitor of the given object, simulating third-party code that
+     *     blocks inside a <tt>synchronized</tt> block.
+     * </p>
+     * <p>
+     *     A Virtual Thread that blocks while holding a monitor cannot unmount from its Carrier Thread, so it
+     *     <em>pins</em> the carrier for the whole duration of the lag. Once enough tasks pin, all the carriers are
+     *     occupied sleeping and every other Virtual Thread starves, even though nothing is actually using the CPU.
+     *     Run with <tt>-Djdk.tracePinnedThreads=short</tt> to see where the pinning happens.
+     * </p>
+     * <p>
+     *     Note: use a monitor that is private to the task, otherwise we are measuring lock contention rather than
+     *     pinning.
+     * </p>
+     * @param monitor object whose monitor is held while sleeping
+     * @return Duration of time chosen to sleep for.
+     * @see #sleepLocked(Lock)
+     */
+    public Duration sleepPinned(Object monitor) {
+        synchronized (monitor) {
+            return sleep();
+        }
+    }
+
+    /**
+     * <p>
+     *     Call {@link #sleep()} while holding the given {@link Lock}, the {@link java.util.concurrent.locks.ReentrantLock}
+     *     counterpart of {@link #sleepPinned(Object)}.
+     * </p>
+     * <p>
+     *     Unlike a monitor, blocking while holding a <tt>java.util.concurrent</tt> lock does not pin, so the
+     *     Virtual Thread unmounts and its Carrier Thread is free to run other Virtual Threads.
+     * </p>
+     * @param lock lock held while sleeping
+     * @return Duration of time chosen to sleep for.
+     * @see #sleepPinned(Object)
+     */
+    public Duration sleepLocked(Lock lock) {
+        lock.lock();
+        try {
+            return sleep();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
 }
@@ -0,0 +1,93 @@
+package net.kolotyluk.loom;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <h1>Latency Recorder</h1>
+ * <p>
+ *     Many of the experiments are more interested in the <em>tail</em> of the latency distribution than in the
+ *     average, because with enough concurrent tasks the slowest ones dominate what a user actually experiences.
+ *     This records latencies from many concurrent threads into a preallocated array, so recording does not allocate,
+ *     and summarizes them as percentiles afterwards.
+ * </p>
+ * <pre>
+ * var latencies = new Latencies(10_000);
+ * . . .
+ * var start = System.nanoTime();
+ * doSomething();
+ * latencies.record(System.nanoTime() - start);
+ * . . .
+ * System.out.println(latencies.summary());
+ * </pre>
+ * <p>
+ *     Samples beyond the capacity are counted, but dropped. Summarize only after the recording threads have been
+ *     joined, so that their writes are visible.
+ * </p>
+ */
+public class Latencies {
+
+    final long[] samples;
+    final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param capacity maximum number of samples kept
+     */
+    public Latencies(int capacity) {
+        samples = new long[capacity];
+    }
+
+    /**
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos) {
+        var index = count.getAndIncrement();
+        if (index < samples.length) samples[index] = nanos;
+    }
+
+    public void record(Duration latency) {
+        record(latency.toNanos());
+    }
+
+    /**
+     * @return number of samples recorded, including any that were dropped
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * Sort a snapshot of the samples and compute the summary statistics.
+     * @return summary of the recorded latencies
+     */
+    public Summary summary() {
+        var size = Math.min(count.get(), samples.length);
+        var sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        if (size == 0) return new Summary(0, Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO);
+        var total = 0.0;
+        for (var sample : sorted) total += sample;
+        return new Summary(
+                count.get(),
+                Duration.ofNanos((long) (total / size)),
+                Duration.ofNanos(percentile(sorted, 0.50)),
+                Duration.ofNanos(percentile(sorted, 0.99)),
+                Duration.ofNanos(percentile(sorted, 0.999)),
+                Duration.ofNanos(sorted[size - 1]));
+    }
+
+    static long percentile(long[] sorted, double percentile) {
+        var index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public record Summary(long count, Duration mean, Duration p50, Duration p99, Duration p999, Duration maximum) {
+        @Override
+        public String toString() {
+            return String.format("count = %d, mean = %.3f ms, p50 = %.3f ms, p99 = %.3f ms, p999 = %.3f ms, max = %.3f ms",
+                    count, mean.toNanos() / 1e6, p50.toNanos() / 1e6, p99.toNanos() / 1e6, p999.toNanos() / 1e6,
+                    maximum.toNanos() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package net.kolotyluk.loom;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+/**
+ * <h1>Loading Cache</h1>
+ * <p>
+ *     In <tt>BasicThroughput</tt> every transactional benchmark asks the same questions over and over, and every
+ *     time pays the full {@link Lag}, so we are really measuring how well each kind of thread waits on the backend.
+ *     Most real systems put a cache in front of a slow backend, which changes the picture, as hits cost next to
+ *     nothing on any kind of thread, and only the misses still wait.
+ * </p>
+ * <pre>
+ * var cache = new LoadingCache&lt;Long&gt;(10_000, Duration.ofSeconds(1), Duration.ofMillis(800), backend::get, virtualThreadFactory);
+ * LongFunction&lt;Long&gt; task = cache::get;
+ * . . .
+ * System.out.println(cache.stats());
+ * </pre>
+ * <h2>Loading</h2>
+ * <p>
+ *     Each load runs in its own thread from <tt>threadFactory</tt>, normally a Virtual Thread, and concurrent
+ *     misses on the same key wait for the same load, as in {@link SingleFlight}. A failed load is not cached, so the
+ *     next get tries again.
+ * </p>
+ * <h2>Expiry</h2>
+ * <p>
+ *     An entry older than <tt>timeToLive</tt> is expired, and the next get waits for a new load. An entry older than
+ *     <tt>refreshAfter</tt>, but not yet expired, is still returned right away, while a new value is loaded in the
+ *     background, so a key that is read often never expires, and never makes a caller wait. If the refresh fails,
+ *     the old value is kept until it expires.
+ * </p>
+ * <h2>Eviction</h2>
+ * <p>
+ *     Once there are more than <tt>maximumSize</tt> entries, the oldest entries are evicted, in the order they were
+ *     first loaded. This is simpler than LRU, which needs every hit to update a shared list, and for the uniform
+ *     access patterns in our experiments is just as good.
+ * </p>
+ * @param <V> type of value
+ */
+public class LoadingCache<V> {
+
+    class Entry {
+        final long key;
+        volatile CompletableFuture<V> value;
+        volatile long loadTime;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(long key) {
+            this.key = key;
+            this.value = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * @param hits gets answered from the cache, including those waiting on a load in progress
+     * @param misses gets that started a load
+     * @param loads completed loads, including refreshes
+     * @param loadFailures loads that threw an exception
+     * @param refreshes loads started ahead of expiry
+     * @param evictions entries evicted to stay within the maximum size
+     * @param averageLoadTime average time per load
+     */
+    public record Stats(long hits, long misses, long loads, long loadFailures, long refreshes, long evictions, Duration averageLoadTime) {
+
+        /**
+         * @return fraction of gets that were hits, between 0.0 and 1.0
+         */
+        public double hitRate() {
+            var gets = hits + misses;
+            return gets == 0 ? 0.0 : (double) hits / gets;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Stats[hit rate = %.1f%%, hits = %d, misses = %d, loads = %d, load failures = %d, refreshes = %d, evictions = %d, average load time = %.3f ms]",
+                    hitRate() * 100, hits, misses, loads, loadFailures, refreshes, evictions, averageLoadTime.toNanos() / 1e6);
+        }
+    }
+
+    final int maximumSize;
+    final long timeToLive;
+    final long refreshAfter;
+    final LongFunction<V> loader;
+    final ThreadFactory threadFactory;
+    final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    final ConcurrentLinkedQueue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+    final AtomicInteger queued = new AtomicInteger(); // about insertionOrder.size(), which is not constant time
+    final AtomicBoolean sweeping = new AtomicBoolean();
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder loads = new LongAdder();
+    final LongAdder loadFailures = new LongAdder();
+    final LongAdder refreshes = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder loadTime = new LongAdder();
+
+    /**
+     * @param maximumSize most entries to keep
+     * @param timeToLive after which an entry is expired
+     * @param refreshAfter after which an entry is reloaded in the background, at least <tt>timeToLive</tt> to never
+     *                     refresh
+     * @param loader to load the value of a key
+     * @param threadFactory to run the loads
+     */
+    public LoadingCache(int maximumSize, Duration timeToLive, Duration refreshAfter, LongFunction<V> loader, ThreadFactory threadFactory) {
+        if (maximumSize < 1) throw new IllegalArgumentException("maximumSize must be positive");
+        this.maximumSize = maximumSize;
+        this.timeToLive = timeToLive.toNanos();
+        this.refreshAfter = refreshAfter.toNanos();
+        this.loader = loader;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Get the value of <tt>key</tt>, loading it if it is not cached, or has expired.
+     * @param key to get
+     * @return value of the key
+     */
+    public V get(long key) {
+        while (true) {
+            var entry = entries.get(key);
+            if (entry == null) {
+                var created = new Entry(key);
+                entry = entries.putIfAbsent(key, created);
+                if (entry == null) {
+                    misses.increment();
+                    insertionOrder.add(created);
+                    queued.incrementAndGet();
+                    evictIfNeeded();
+                    load(created, false);
+                    return await(created.value);
+                }
+            }
+            var value = entry.value;
+            if (value.isDone()) {
+                var age = System.nanoTime() - entry.loadTime;
+                if (age >= timeToLive) {
+                    // Expired, so start over as a miss, unless someone beat us to it
+                    entries.remove(key, entry);
+                    continue;
+                }
+                if (age >= refreshAfter && entry.refreshing.compareAndSet(false, true)) {
+                    refreshes.increment();
+                    load(entry, true);
+                }
+            }
+            hits.increment();
+            return await(value);
+        }
+    }
+
+    void load(Entry entry, boolean refresh) {
+        threadFactory.newThread(() -> {
+            var startTime = System.nanoTime();
+            try {
+                var result = loader.apply(entry.key);
+                loadTime.add(System.nanoTime() - startTime);
+                loads.increment();
+                entry.loadTime = System.nanoTime();
+                if (refresh)
+                    entry.value = CompletableFuture.completedFuture(result);
+                else
+                    entry.value.complete(result);
+            } catch (Throwable t) {
+                loadTime.add(System.nanoTime() - startTime);
+                loadFailures.increment();
+                if (!refresh) {
+                    // Do not cache the failure, but do let everyone waiting on it know
+                    entries.remove(entry.key, entry);
+                    entry.value.completeExceptionally(t);
+                }
+            }
+            finally {
+                entry.refreshing.set(false);
+            }
+        }).start();
+    }
+
+    void evictIfNeeded() {
+        while (entries.size() > maximumSize) {
+            var oldest = insertionOrder.poll();
+            if (oldest == null) break;
+            queued.decrementAndGet();
+            // Entries that expired, or failed to load, are already gone
+            if (entries.remove(oldest.key, oldest)) evictions.increment();
+        }
+        // Entries that expired, or failed to load, leave their place in the queue behind, so with a short time to
+        // live, and fewer keys than maximumSize, nothing above ever polls them. Once the queue is twice as long as
+        // it needs to be, at least half of it is stale, so sweeping it costs no more than the adds that got it there.
+        if (queued.get() > 2L * maximumSize && sweeping.compareAndSet(false, true)) {
+            try {
+                insertionOrder.removeIf(entry -> entries.get(entry.key) != entry);
+                queued.set(insertionOrder.size());
+            }
+            finally {
+                sweeping.set(false);
+            }
+        }
+    }
+
+    V await(CompletableFuture<V> value) {
+        try {
+            return value.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            if (e.getCause() instanceof Error cause) throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of entries, including those still loading
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove every entry, but keep the statistics.
+     */
+    public void clear() {
+        entries.clear();
+        insertionOrder.clear();
+        queued.set(0);
+    }
+
+    /**
+     * @return statistics so far
+     */
+    public Stats stats() {
+        var loads = this.loads.sum();
+        var failures = loadFailures.sum();
+        var total = loads + failures;
+        return new Stats(hits.sum(), misses.sum(), loads, failures, refreshes.sum(), evictions.sum(),
+                Duration.ofNanos(total == 0 ? 0 : loadTime.sum() / total));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LoadingCache[size = %d of %d, time to live = %s, refresh after = %s, %s]",
+                size(), maximumSize, Duration.ofNanos(timeToLive), Duration.ofNanos(refreshAfter), stats());
+    }
+}
@@ -0,0 +1,190 @@
+package net.kolotyluk.loom;
+
+import jdk.incubator.concurrent.StructuredTaskScope;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.function.LongUnaryOperator;
+import java.util.stream.LongStream;
+
+/**
+ * <h1>Long Result Scope</h1>
+ * <p>
+ *     The usual way to get results out of a {@link StructuredTaskScope} is to keep every {@link Future} returned by
+ *     {@link StructuredTaskScope#fork(java.util.concurrent.Callable)} in a {@link java.util.List}, and then call
+ *     {@link Future#resultNow()} on each of them after {@link #join()}. With millions of tasks that is millions of
+ *     futures kept alive only to carry a <tt>long</tt> back to the owner.
+ * </p>
+ * <p>
+ *     Instead, this scope preallocates a <tt>long[]</tt>, and each subtask writes its result directly into its own
+ *     slot as it completes, so after {@link #join()} the results are already in order.
+ * </p>
+ * <pre>
+ * try (var scope = new LongResultScope(limit, virtualThreadFactory)) {
+ *     for (int index = 0; index &lt; limit; index++) {
+ *         final var item = index;
+ *         scope.fork(index, () -> item + item);
+ *     }
+ *     scope.join();
+ *     var results = scope.results();
+ * }
+ * </pre>
+ * <h2>Chunks</h2>
+ * <p>
+ *     When each item is only a few nanoseconds of work, a thread per item costs far more than the work itself, so
+ *     {@link #forkRange(int, int, LongUnaryOperator)} forks one subtask for a contiguous chunk of items.
+ * </p>
+ * <h2>Bounded Concurrency</h2>
+ * <p>
+ *     Forking eagerly, one subtask per item, means that with 10,000,000 items we can have millions of threads alive
+ *     at once. Given a number of permits, {@link #forkAll(LongStream, LongUnaryOperator)} only forks the next item
+ *     when a permit is free, so the number of subtasks in flight, and the memory they use, stays bounded.
+ * </p>
+ * <pre>
+ * try (var scope = new LongResultScope(size, 10_000, virtualThreadFactory)) {
+ *     scope.forkAll(LongStream.range(0, size), item -> item + item);
+ *     scope.join();
+ *     var results = scope.results();
+ * }
+ * </pre>
+ * <p>
+ *     Like {@link StructuredTaskScope.ShutdownOnFailure}, the first subtask to fail shuts the scope down, and
+ *     {@link #results()} then throws.
+ * </p>
+ * <p>
+ *     Note: each subtask writes to a different slot, and {@link #join()} guarantees the writes of the subtasks
+ *     happen-before the owner continues, so no further synchronization is needed.
+ * </p>
+ */
+public class LongResultScope extends StructuredTaskScope<Object> {
+
+    final long[] results;
+    final Semaphore permits;
+    final AtomicReference<Throwable> exception = new AtomicReference<>();
+
+    /**
+     * @param size number of results
+     * @param threadFactory to create the subtask threads
+     */
+    public LongResultScope(int size, ThreadFactory threadFactory) {
+        super(null, threadFactory);
+        results = new long[size];
+        permits = null;
+    }
+
+    /**
+     * @param size number of results
+     * @param permits maximum number of subtasks {@link #forkAll(LongStream, LongUnaryOperator)} keeps in flight
+     * @param threadFactory to create the subtask threads
+     */
+    public LongResultScope(int size, int permits, ThreadFactory threadFactory) {
+        super(null, threadFactory);
+        results = new long[size];
+        this.permits = new Semaphore(permits);
+    }
+
+    /**
+     * Fork a subtask whose result is written into <tt>results[index]</tt>.
+     * @param index slot for the result
+     * @param task computing the result
+     */
+    public void fork(int index, LongSupplier task) {
+        fork(() -> {
+            results[index] = task.getAsLong();
+            return null;
+        });
+    }
+
+    /**
+     * Fork a single subtask that computes the contiguous chunk of slots from <tt>from</tt> until <tt>to</tt>,
+     * where the item of each slot is its index.
+     * @param from first slot, inclusive
+     * @param to last slot, exclusive
+     * @param task computing the result of each item
+     */
+    public void forkRange(int from, int to, LongUnaryOperator task) {
+        Objects.checkFromToIndex(from, to, results.length);
+        fork(() -> {
+            for (int index = from; index < to; index++) results[index] = task.applyAsLong(index);
+            return null;
+        });
+    }
+
+    /**
+     * Like {@link #forkRange(int, int, LongUnaryOperator)}, but compute the chunk in the current thread, for when
+     * forking would cost more than the work itself.
+     * @param from first slot, inclusive
+     * @param to last slot, exclusive
+     * @param task computing the result of each item
+     */
+    public void runRange(int from, int to, LongUnaryOperator task) {
+        Objects.checkFromToIndex(from, to, results.length);
+        for (int index = from; index < to; index++) results[index] = task.applyAsLong(index);
+    }
+
+    /**
+     * <p>
+     *     Fork a subtask for each item of <tt>source</tt>, writing the results into consecutive slots.
+     * </p>
+     * <p>
+     *     If this scope was created with a number of permits, the source is consumed lazily, one item per permit,
+     *     so at most that many subtasks, and their threads, are alive at once, no matter how large the source is.
+     *     Otherwise, this forks as fast as it can consume the source.
+     * </p>
+     * @param source of items, consumed in encounter order
+     * @param task computing the result of each item
+     * @throws InterruptedException if interrupted waiting for a permit
+     * @throws IndexOutOfBoundsException if the source has more items than there are results
+     */
+    public void forkAll(LongStream source, LongUnaryOperator task) throws InterruptedException {
+        var iterator = source.iterator();
+        for (int index = 0; iterator.hasNext(); index++) {
+            Objects.checkIndex(index, results.length);
+            final var slot = index;
+            final var item = iterator.nextLong();
+            if (permits != null) permits.acquire();
+            var future = fork(() -> {
+                try {
+                    results[slot] = task.applyAsLong(item);
+                    return null;
+                }
+                finally {
+                    if (permits != null) permits.release();
+                }
+            });
+            if (future.isCancelled()) {
+                // The scope has been shutdown, so the subtask never ran, and there is no point forking any more
+                if (permits != null) permits.release();
+                break;
+            }
+        }
+    }
+
+    @Override
+    protected void handleComplete(Future<Object> future) {
+        if (future.state() == Future.State.FAILED && exception.compareAndSet(null, future.exceptionNow()))
+            shutdown();
+    }
+
+    @Override
+    public LongResultScope join() throws InterruptedException {
+        super.join();
+        return this;
+    }
+
+    /**
+     * Call after {@link #join()}.
+     * @return results indexed as forked
+     * @throws ExecutionException if any subtask failed
+     */
+    public long[] results() throws ExecutionException {
+        var cause = exception.get();
+        if (cause != null) throw new ExecutionException(cause);
+        return results;
+    }
+}
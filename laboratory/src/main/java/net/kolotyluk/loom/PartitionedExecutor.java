@@ -0,0 +1,282 @@
+package net.kolotyluk.loom;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h1>Partitioned Executor</h1>
+ * <p>
+ *     Some work must be done in order per entity, such as the updates to one account, or the events of one
+ *     session, while different entities can go in any order. A single thread executor keeps everything in order, but
+ *     does one thing at a time, while a Virtual Thread per task runs everything at once, in no particular order.
+ * </p>
+ * <p>
+ *     A partitioned executor hashes a <tt>long</tt> key to one of <tt>lanes</tt> serial lanes, each with its own
+ *     queue, drained by its own thread from <tt>threadFactory</tt>. Tasks with the same key always go to the same
+ *     lane, so they run in the order submitted, while tasks in different lanes run concurrently, so there is up to
+ *     <tt>lanes</tt> way concurrency overall. This is how Kafka partitions, and actor mailboxes, keep order at scale.
+ * </p>
+ * <pre>
+ * try (var executor = new PartitionedExecutor(1000, virtualThreadFactory)) {
+ *     executor.execute(account, () -> apply(account, debit));
+ *     var balance = executor.submit(account, () -> balance(account));
+ * }
+ * </pre>
+ * <p>
+ *     Tasks submitted the usual {@link java.util.concurrent.ExecutorService} way, without a key, are spread over the
+ *     lanes round robin, so this can stand in for any other executor, such as in <tt>Experiment11_PrimeThreads</tt>.
+ * </p>
+ * <h2>Queues</h2>
+ * <p>
+ *     Each lane has many producers, and one consumer, so its queue is the lock-free multi producer single consumer
+ *     linked queue of Dmitry Vyukov. A producer swaps itself in as the tail with a single atomic
+ *     <tt>getAndSet</tt>, then links the previous tail to it, while the consumer just follows the links from the
+ *     head, with no atomic operations at all. When its queue is empty, the lane thread parks, and a producer that
+ *     finds it waiting unparks it.
+ * </p>
+ */
+public class PartitionedExecutor extends AbstractExecutorService {
+
+    static class Node {
+        Runnable task;
+        volatile Node next;
+
+        Node(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    static final VarHandle NEXT;
+
+    static {
+        try {
+            NEXT = MethodHandles.lookup().findVarHandle(Node.class, "next", Node.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    class Lane implements Runnable {
+        final AtomicReference<Node> tail;
+        final AtomicInteger producers = new AtomicInteger(); // between their shutdown check and their offer
+        Node head; // only touched by the lane thread
+        volatile boolean waiting;
+        final Thread thread;
+
+        Lane() {
+            head = new Node(null);
+            tail = new AtomicReference<>(head);
+            thread = threadFactory.newThread(this);
+        }
+
+        void offer(Runnable task) {
+            var node = new Node(task);
+            var previous = tail.getAndSet(node);
+            NEXT.setRelease(previous, node);
+            if (waiting) LockSupport.unpark(thread);
+        }
+
+        boolean isEmpty() {
+            // The tail moves before the link is made, so this never misses a task that is on its way
+            return tail.get() == head;
+        }
+
+        Runnable poll() {
+            while (true) {
+                var next = (Node) NEXT.getAcquire(head);
+                if (next != null) {
+                    head = next;
+                    var task = next.task;
+                    next.task = null;
+                    return task;
+                }
+                if (isEmpty()) return null;
+                Thread.yield(); // a producer is between getAndSet and linking, let it finish
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                var task = poll();
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), t);
+                    }
+                    completed.incrementAndGet();
+                    continue;
+                }
+                if (shutdown) {
+                    // A producer that got past the shutdown check before it was set may not have offered yet
+                    if (producers.get() == 0 && isEmpty()) return;
+                    Thread.yield();
+                    continue;
+                }
+                waiting = true;
+                if (isEmpty() && !shutdown) LockSupport.park(this);
+                waiting = false;
+            }
+        }
+
+        List<Runnable> drain() {
+            var tasks = new ArrayList<Runnable>();
+            for (var node = (Node) NEXT.getAcquire(head); node != null; node = (Node) NEXT.getAcquire(node))
+                if (node.task != null) tasks.add(node.task);
+            return tasks;
+        }
+    }
+
+    final ThreadFactory threadFactory;
+    final Lane[] lanes;
+    final AtomicLong roundRobin = new AtomicLong();
+    final AtomicLong submitted = new AtomicLong();
+    final AtomicLong completed = new AtomicLong();
+    volatile boolean shutdown;
+    volatile boolean stopped;
+
+    /**
+     * @param lanes number of serial lanes, the most tasks that can run at once
+     * @param threadFactory to create the lane threads
+     */
+    public PartitionedExecutor(int lanes, ThreadFactory threadFactory) {
+        if (lanes < 1) throw new IllegalArgumentException("lanes must be positive");
+        this.threadFactory = threadFactory;
+        this.lanes = new Lane[lanes];
+        for (int index = 0; index < lanes; index++) this.lanes[index] = new Lane();
+        for (var lane : this.lanes) lane.thread.start();
+    }
+
+    /**
+     * @param key to choose the lane
+     * @return index of the lane for the key
+     */
+    int laneOf(long key) {
+        // Spread keys that differ only in their high bits, or are all multiples of the lane count
+        var hash = key * 0x9E3779B97F4A7C15L;
+        return (int) Long.remainderUnsigned(hash ^ (hash >>> 32), lanes.length);
+    }
+
+    /**
+     * Run <tt>task</tt> after every task submitted before it with the same key.
+     * @param key to order by
+     * @param task to run
+     */
+    public void execute(long key, Runnable task) {
+        enqueue(lanes[laneOf(key)], task);
+    }
+
+    void enqueue(Lane lane, Runnable task) {
+        // Announce ourselves before checking, so the lane cannot see shutdown, find nothing, and leave our task behind
+        lane.producers.incrementAndGet();
+        try {
+            if (shutdown) throw new RejectedExecutionException("executor is shut down");
+            submitted.incrementAndGet();
+            lane.offer(task);
+        }
+        finally {
+            lane.producers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Call <tt>task</tt> after every task submitted before it with the same key.
+     * @param key to order by
+     * @param task to call
+     * @return future result
+     * @param <T> type of result
+     */
+    public <T> Future<T> submit(long key, Callable<T> task) {
+        var future = new FutureTask<>(task);
+        execute(key, future);
+        return future;
+    }
+
+    /**
+     * Run <tt>task</tt> in the next lane, round robin, with no ordering.
+     * @param task to run
+     */
+    @Override
+    public void execute(Runnable task) {
+        // Not through laneOf, whose hash spreads keys well, but does not take turns
+        enqueue(lanes[(int) Long.remainderUnsigned(roundRobin.getAndIncrement(), lanes.length)], task);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        for (var lane : lanes) LockSupport.unpark(lane.thread);
+    }
+
+    /**
+     * The lane threads are not interrupted, as a task interrupted part way could break the order of its key, so
+     * this waits for each lane to finish the task it is running.
+     * @return tasks that had not started
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        stopped = true;
+        shutdown();
+        var tasks = new ArrayList<Runnable>();
+        var interrupted = false;
+        for (var lane : lanes) {
+            // Once the lane thread is done, its head is safe to read from here
+            while (true) {
+                try {
+                    lane.thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            while (lane.producers.get() > 0) Thread.yield();
+            tasks.addAll(lane.drain());
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        if (!shutdown) return false;
+        for (var lane : lanes) if (lane.thread.isAlive()) return false;
+        return true;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        var deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (var lane : lanes) {
+            var remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return isTerminated();
+            lane.thread.join(Duration.ofNanos(remaining));
+        }
+        return isTerminated();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PartitionedExecutor[lanes = %d, submitted = %d, completed = %d]",
+                lanes.length, submitted.get(), completed.get());
+    }
+}
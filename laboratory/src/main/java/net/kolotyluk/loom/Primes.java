@@ -23,6 +23,25 @@ public class Primes {
         }).filter(n -> n > 0).toArray();
     }
 
+    /**
+     * Basic predicate for prime numbers, by trial division, with no simulated overhead, so purely computational.
+     * @param candidate number to test for factors
+     * @return true if Prime, false if not
+     */
+    public static boolean isPrime(long candidate) {
+        if (candidate == 2) return true;
+        if ((candidate & 1) == 0) return false; // filter out even numbers
+
+        var limit = (long) Math.nextUp(Math.sqrt(candidate));
+
+        for (long divisor = 3; divisor <= limit; divisor += 2) {
+            // Thread.onSpinWait(); // If you think this will help, it likely won't
+            if (candidate % divisor == 0) return false;
+        }
+
+        return true;
+    }
+
     /**
      * Basic predicate for prime numbers, with capability of simulating network overhead.
      * @param candidate number to test for factors
@@ -39,17 +58,7 @@ public class Primes {
             lag.sleep(); // Simulate network request overhead
 
 
-            if (candidate == 2) return true;
-            if ((candidate & 1) == 0) return false; // filter out even numbers
-
-            var limit = (long) Math.nextUp(Math.sqrt(candidate));
-
-            for (long divisor = 3; divisor <= limit; divisor += 2) {
-                // Thread.onSpinWait(); // If you think this will help, it likely won't
-                if (candidate % divisor == 0) return false;
-            }
-
-            return true;
+            return isPrime(candidate);
         }
         finally {
             // lag.apply(minimumLag, maximumLag);  // Simulate network response overhead
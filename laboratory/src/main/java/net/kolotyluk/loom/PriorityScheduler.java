@@ -0,0 +1,188 @@
+package net.kolotyluk.loom;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>Priority Scheduler</h1>
+ * <p>
+ *     With a Virtual Thread per task, every task starts right away, and they all compete equally for the carriers,
+ *     and whatever is downstream. That is fine until a flood of background batch work arrives at the same time as
+ *     latency critical requests, which then wait behind the batch, with nothing to say they matter more.
+ * </p>
+ * <p>
+ *     The scheduler holds submitted tasks in a {@link PriorityBlockingQueue}, and releases them to new threads from
+ *     <tt>threadFactory</tt> only while there is a permit, at most <tt>permits</tt> at once, so the order in which
+ *     they start is up to us. Tasks are ordered by <tt>priority</tt>, lower first, then by <tt>deadline</tt>,
+ *     earliest first, then in the order submitted. So all tasks with the same priority and no deadline are FIFO,
+ *     and all tasks with the same priority and deadlines are Earliest Deadline First.
+ * </p>
+ * <pre>
+ * try (var scheduler = new PriorityScheduler(100, virtualThreadFactory)) {
+ *     scheduler.submit(10, () -> reindex(batch));                                 // background
+ *     var quote = scheduler.submit(0, () -> price(item));                         // interactive
+ *     var order = scheduler.submit(0, Instant.now().plusMillis(50), () -> place(item)); // due soon
+ * }
+ * </pre>
+ * <p>
+ *     Note: there is no dispatcher thread. Whoever submits a task, or finishes one, starts as many queued tasks as
+ *     there are free permits, checking the queue again after giving back a permit it could not use, so a task is
+ *     never left in the queue with a permit free.
+ * </p>
+ */
+public class PriorityScheduler implements AutoCloseable {
+
+    class Job<T> extends FutureTask<T> {
+        final int priority;
+        final Instant deadline;
+        final long sequence;
+        final long submitted = System.nanoTime();
+
+        Job(int priority, Instant deadline, Callable<T> callable) {
+            super(callable);
+            this.priority = priority;
+            this.deadline = deadline;
+            this.sequence = sequencer.getAndIncrement();
+        }
+
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+    }
+
+    static final Comparator<Job<?>> order = Comparator.<Job<?>>comparingInt(job -> job.priority)
+            .thenComparing(job -> job.deadline)
+            .thenComparingLong(job -> job.sequence);
+
+    final int permits;
+    final ThreadFactory threadFactory;
+    final Semaphore gate;
+    final PriorityBlockingQueue<Job<?>> queue = new PriorityBlockingQueue<>(1024, order);
+    final AtomicLong sequencer = new AtomicLong();
+    final AtomicLong started = new AtomicLong();
+    final AtomicLong queueTime = new AtomicLong();
+    volatile boolean closed;
+
+    /**
+     * @param permits most tasks running at once
+     * @param threadFactory to run the tasks
+     */
+    public PriorityScheduler(int permits, ThreadFactory threadFactory) {
+        if (permits < 1) throw new IllegalArgumentException("permits must be positive");
+        this.permits = permits;
+        this.threadFactory = threadFactory;
+        this.gate = new Semaphore(permits);
+    }
+
+    /**
+     * @param priority lower runs first
+     * @param deadline earlier runs first, among tasks of the same priority
+     * @param callable task
+     * @return future result of the task
+     * @param <T> type of result
+     */
+    public <T> Future<T> submit(int priority, Instant deadline, Callable<T> callable) {
+        if (closed) throw new RejectedExecutionException("scheduler is closed");
+        var job = new Job<>(priority, deadline, callable);
+        queue.add(job);
+        // If close() finished between the check above and the add, nobody would ever run the job, so take it back
+        if (closed && queue.remove(job)) throw new RejectedExecutionException("scheduler is closed");
+        dispatch();
+        return job;
+    }
+
+    /**
+     * @param priority lower runs first
+     * @param callable task
+     * @return future result of the task
+     * @param <T> type of result
+     */
+    public <T> Future<T> submit(int priority, Callable<T> callable) {
+        return submit(priority, Instant.MAX, callable);
+    }
+
+    /**
+     * @param deadline earlier runs first
+     * @param callable task
+     * @return future result of the task
+     * @param <T> type of result
+     */
+    public <T> Future<T> submit(Instant deadline, Callable<T> callable) {
+        return submit(0, deadline, callable);
+    }
+
+    void dispatch() {
+        while (!queue.isEmpty() && gate.tryAcquire()) {
+            var job = queue.poll();
+            if (job == null) {
+                // Someone else took it, give the permit back, and look again
+                gate.release();
+                continue;
+            }
+            try {
+                var thread = threadFactory.newThread(() -> {
+                    try {
+                        job.run();
+                    }
+                    finally {
+                        gate.release();
+                        dispatch();
+                    }
+                });
+                if (thread == null) throw new RejectedExecutionException("threadFactory did not create a thread");
+                thread.start();
+            } catch (Throwable t) {
+                // The job never ran, so give back its permit, and fail it rather than lose it
+                gate.release();
+                job.fail(t);
+                continue;
+            }
+            started.incrementAndGet();
+            queueTime.addAndGet(System.nanoTime() - job.submitted);
+        }
+    }
+
+    /**
+     * @return tasks waiting for a permit
+     */
+    public int queued() {
+        return queue.size();
+    }
+
+    /**
+     * @return tasks running
+     */
+    public int running() {
+        return permits - gate.availablePermits();
+    }
+
+    /**
+     * Stop accepting tasks, and wait for those already submitted to complete.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        while (true) {
+            gate.acquireUninterruptibly(permits);
+            var empty = queue.isEmpty();
+            gate.release(permits);
+            if (empty) return;
+            dispatch();
+        }
+    }
+
+    @Override
+    public String toString() {
+        var started = this.started.get();
+        return String.format("PriorityScheduler[permits = %d, running = %d, queued = %d, started = %d, average queue time = %.3f ms]",
+                permits, running(), queued(), started, started == 0 ? 0.0 : queueTime.get() / 1e6 / started);
+    }
+}
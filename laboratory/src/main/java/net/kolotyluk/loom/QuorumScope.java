@@ -0,0 +1,144 @@
+package net.kolotyluk.loom;
+
+import jdk.incubator.concurrent.StructuredTaskScope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <h1>Quorum Scope</h1>
+ * <p>
+ *     {@link StructuredTaskScope.ShutdownOnFailure} waits for every subtask, and
+ *     {@link StructuredTaskScope.ShutdownOnSuccess} takes the first, but when we ask several replicas the same
+ *     question, we often want something in between, such as the first 2 answers to compare, or a majority of 5
+ *     to be sure of a write. Waiting for all of them means our latency is the latency of the slowest replica, while
+ *     waiting for <tt>k</tt> of <tt>n</tt> means it is the <tt>k</tt>-th fastest.
+ * </p>
+ * <pre>
+ * try (var scope = QuorumScope.&lt;Long&gt;majority(replicas.size(), virtualThreadFactory)) {
+ *     for (var replica : replicas) scope.fork(() -> replica.read(key));
+ *     scope.join();
+ *     var answers = scope.results(); // throws if there was no majority
+ * }
+ * </pre>
+ * <p>
+ *     As soon as <tt>required</tt> subtasks have succeeded the scope shuts down, cancelling the rest, and likewise as
+ *     soon as so many have failed that the quorum can no longer be reached.
+ * </p>
+ * <p>
+ *     Note: only the first <tt>required</tt> results are kept, in a preallocated array, so no matter how many
+ *     subtasks are forked, there is no list of futures to hold on to. A subtask claims a slot, writes it, and only
+ *     then counts it as filled, so the scope does not shut down until every slot has been written.
+ * </p>
+ * @param <T> type of subtask results
+ * @see BestResultScope
+ */
+public class QuorumScope<T> extends StructuredTaskScope<T> {
+
+    final int required;
+    final AtomicReferenceArray<T> results;
+    final AtomicInteger claimed = new AtomicInteger();
+    final AtomicInteger filled = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicInteger forked = new AtomicInteger();
+    final AtomicReference<Throwable> exception = new AtomicReference<>();
+    volatile boolean joining;
+
+    /**
+     * @param required number of successful subtasks needed
+     * @param threadFactory to create the subtask threads
+     */
+    public QuorumScope(int required, ThreadFactory threadFactory) {
+        super(null, threadFactory);
+        if (required < 1) throw new IllegalArgumentException("required must be positive");
+        this.required = required;
+        this.results = new AtomicReferenceArray<>(required);
+    }
+
+    /**
+     * @param k number of successful subtasks needed
+     * @param threadFactory to create the subtask threads
+     * @return scope that completes with the first <tt>k</tt> successes
+     * @param <T> type of subtask results
+     */
+    public static <T> QuorumScope<T> firstK(int k, ThreadFactory threadFactory) {
+        return new QuorumScope<>(k, threadFactory);
+    }
+
+    /**
+     * @param replicas number of subtasks that will be forked
+     * @param threadFactory to create the subtask threads
+     * @return scope that completes with the first <tt>replicas / 2 + 1</tt> successes
+     * @param <T> type of subtask results
+     */
+    public static <T> QuorumScope<T> majority(int replicas, ThreadFactory threadFactory) {
+        return new QuorumScope<>(replicas / 2 + 1, threadFactory);
+    }
+
+    @Override
+    public <U extends T> Future<U> fork(Callable<? extends U> task) {
+        forked.incrementAndGet();
+        return super.fork(task);
+    }
+
+    @Override
+    protected void handleComplete(Future<T> future) {
+        switch (future.state()) {
+            case SUCCESS -> {
+                var index = claimed.getAndIncrement();
+                if (index < required) {
+                    results.set(index, future.resultNow());
+                    if (filled.incrementAndGet() == required) shutdown();
+                }
+            }
+            case FAILED -> {
+                exception.compareAndSet(null, future.exceptionNow());
+                failed.incrementAndGet();
+                if (joining) shutdownIfUnreachable();
+            }
+            default -> {}
+        }
+    }
+
+    void shutdownIfUnreachable() {
+        // Once too many have failed, waiting for the rest is pointless
+        if (forked.get() - failed.get() < required) shutdown();
+    }
+
+    @Override
+    public QuorumScope<T> join() throws InterruptedException {
+        // Until the owner joins, more subtasks may still be forked, so we cannot tell if the quorum is unreachable
+        joining = true;
+        shutdownIfUnreachable();
+        super.join();
+        return this;
+    }
+
+    /**
+     * @return true if <tt>required</tt> subtasks succeeded
+     */
+    public boolean isSatisfied() {
+        return filled.get() >= required;
+    }
+
+    /**
+     * Call after {@link #join()}.
+     * @return the first <tt>required</tt> results, in the order they completed
+     * @throws ExecutionException if fewer than <tt>required</tt> subtasks succeeded, with the first failure as the
+     * cause, if there was one
+     */
+    public List<T> results() throws ExecutionException {
+        if (!isSatisfied())
+            throw new ExecutionException("quorum not reached, " + filled.get() + " of " + required + " succeeded", exception.get());
+        var list = new ArrayList<T>(required);
+        for (int index = 0; index < required; index++) list.add(results.get(index));
+        return list;
+    }
+}
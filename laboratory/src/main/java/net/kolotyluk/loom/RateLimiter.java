@@ -0,0 +1,231 @@
+package net.kolotyluk.loom;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h1>Rate Limiter</h1>
+ * <p>
+ *     Many downstream services only allow so many calls per second, per client, or per key, and with a Virtual
+ *     Thread per call it is easy to blow through the limit in the first millisecond. A {@link ConcurrencyLimiter}
+ *     or {@link Bulkhead} bounds how many calls are in flight, but not how many start per second, which is what a
+ *     rate limit is about.
+ * </p>
+ * <pre>
+ * var limiter = RateLimiter.tokenBucket(100_000, 1000); // 100k permits/second, bursts of up to 1000
+ * . . .
+ * limiter.acquire();        // park until there is a permit
+ * downstream.call(value);
+ * </pre>
+ * <h2>Token Bucket and Leaky Bucket</h2>
+ * <p>
+ *     A token bucket holds up to <tt>burst</tt> permits, refilled at <tt>rate</tt> per second, so an idle client
+ *     can make a burst of calls at once, while a busy one is held to the rate. A leaky bucket lets calls out at
+ *     exactly the rate, with no bursts, which is a token bucket with a burst of 1, see {@link #leakyBucket(double)}.
+ * </p>
+ * <h2>GCRA</h2>
+ * <p>
+ *     Rather than a count of tokens, and a thread to refill them, we use the Generic Cell Rate Algorithm from ATM
+ *     networks, which keeps a single number, the time at which the next permit is due. Each acquire claims that time
+ *     by compare and set, and moves it one <em>emission interval</em>, <tt>1 / rate</tt>, into the future, but never
+ *     lets it fall more than <tt>burst</tt> intervals into the past, which is the bucket being full.
+ * </p>
+ * <p>
+ *     So every acquire knows right away exactly when its permit is due, and parks with
+ *     {@link LockSupport#parkNanos(long)} until then. There is no spinning, no polling, and no sleeping in a loop to
+ *     check again. On a Virtual Thread, parking unmounts it from its carrier, so a million threads waiting for a
+ *     permit cost only their memory, and each one wakes up when its own permit is due.
+ * </p>
+ * <p>
+ *     Note: the permit is claimed before waiting, so a thread interrupted while waiting has still used up its
+ *     permit, which errs on the side of the downstream.
+ * </p>
+ */
+public class RateLimiter {
+
+    final long interval;
+    final long tolerance;
+    final AtomicLong next;
+    final AtomicLong permits = new AtomicLong();
+    final AtomicLong waits = new AtomicLong();
+    final AtomicLong waitTime = new AtomicLong();
+
+    /**
+     * @param rate permits per second
+     * @param burst most permits that can be taken at once after being idle
+     */
+    public RateLimiter(double rate, int burst) {
+        if (rate <= 0.0) throw new IllegalArgumentException("rate must be positive");
+        if (burst < 1) throw new IllegalArgumentException("burst must be positive");
+        this.interval = Math.max(1, (long) (1e9 / rate));
+        this.tolerance = interval * (burst - 1);
+        this.next = new AtomicLong(System.nanoTime() - tolerance);
+    }
+
+    /**
+     * @param rate permits per second
+     * @param burst most permits that can be taken at once after being idle
+     * @return a token bucket
+     */
+    public static RateLimiter tokenBucket(double rate, int burst) {
+        return new RateLimiter(rate, burst);
+    }
+
+    /**
+     * @param rate permits per second
+     * @return a leaky bucket, where permits are evenly spaced
+     */
+    public static RateLimiter leakyBucket(double rate) {
+        return new RateLimiter(rate, 1);
+    }
+
+    /**
+     * Claim a permit, if one is due within <tt>maximumWait</tt>.
+     * @param now current {@link System#nanoTime()}
+     * @param maximumWait longest wait to accept, in nanoseconds
+     * @return when the claimed permit is due, or {@link Long#MIN_VALUE} if none was claimed
+     */
+    long reserve(long now, long maximumWait) {
+        while (true) {
+            var current = next.get();
+            var due = Math.max(current, now - tolerance);
+            if (due - now > maximumWait) return Long.MIN_VALUE;
+            if (next.compareAndSet(current, due + interval)) {
+                permits.incrementAndGet();
+                return due;
+            }
+        }
+    }
+
+    void await(long due) throws InterruptedException {
+        var remaining = due - System.nanoTime();
+        if (remaining <= 0) return;
+        waits.incrementAndGet();
+        waitTime.addAndGet(remaining);
+        while (remaining > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) throw new InterruptedException();
+            remaining = due - System.nanoTime();
+        }
+    }
+
+    /**
+     * Take a permit, parking until it is due.
+     * @return how long we waited
+     * @throws InterruptedException if interrupted while waiting, the permit is still used up
+     */
+    public Duration acquire() throws InterruptedException {
+        var now = System.nanoTime();
+        var due = reserve(now, Long.MAX_VALUE);
+        await(due);
+        return Duration.ofNanos(Math.max(0, due - now));
+    }
+
+    /**
+     * Take a permit, if one is due right now.
+     * @return true if we got one
+     */
+    public boolean tryAcquire() {
+        return reserve(System.nanoTime(), 0) != Long.MIN_VALUE;
+    }
+
+    /**
+     * Take a permit, if one is due within <tt>maximumWait</tt>, parking until it is due. Unlike
+     * {@link #acquire()}, this never waits longer than <tt>maximumWait</tt>, so it bounds the queue of a leaky bucket.
+     * @param maximumWait longest to wait
+     * @return true if we got one
+     * @throws InterruptedException if interrupted while waiting, the permit is still used up
+     */
+    public boolean tryAcquire(Duration maximumWait) throws InterruptedException {
+        var due = reserve(System.nanoTime(), maximumWait.toNanos());
+        if (due == Long.MIN_VALUE) return false;
+        await(due);
+        return true;
+    }
+
+    /**
+     * @return permits per second
+     */
+    public double rate() {
+        return 1e9 / interval;
+    }
+
+    /**
+     * @return permits taken
+     */
+    public long permits() {
+        return permits.get();
+    }
+
+    /**
+     * @return permits that had to wait
+     */
+    public long waits() {
+        return waits.get();
+    }
+
+    @Override
+    public String toString() {
+        var waits = this.waits.get();
+        return String.format("RateLimiter[rate = %.1f/second, burst = %d, permits = %d, waits = %d, average wait = %.3f ms]",
+                rate(), tolerance / interval + 1, permits.get(), waits, waits == 0 ? 0.0 : waitTime.get() / 1e6 / waits);
+    }
+
+    /**
+     * <h2>Per Key Rate Limits</h2>
+     * <p>
+     *     A separate {@link RateLimiter} for each key, such as a customer, or a shard, each with the same rate and
+     *     burst, created on first use. Since a GCRA limiter is a single number, an idle key costs next to nothing.
+     * </p>
+     */
+    public static class Keyed {
+
+        final double rate;
+        final int burst;
+        final ConcurrentHashMap<Long, RateLimiter> limiters = new ConcurrentHashMap<>();
+
+        /**
+         * @param rate permits per second, per key
+         * @param burst most permits per key that can be taken at once after being idle
+         */
+        public Keyed(double rate, int burst) {
+            this.rate = rate;
+            this.burst = burst;
+        }
+
+        /**
+         * @param key to limit
+         * @return the rate limiter for the key
+         */
+        public RateLimiter limiter(long key) {
+            return limiters.computeIfAbsent(key, k -> new RateLimiter(rate, burst));
+        }
+
+        /**
+         * Take a permit for the key, parking until it is due.
+         * @param key to limit
+         * @return how long we waited
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public Duration acquire(long key) throws InterruptedException {
+            return limiter(key).acquire();
+        }
+
+        /**
+         * @param key to limit
+         * @return true if a permit for the key was due right now
+         */
+        public boolean tryAcquire(long key) {
+            return limiter(key).tryAcquire();
+        }
+
+        /**
+         * @return number of keys seen
+         */
+        public int size() {
+            return limiters.size();
+        }
+    }
+}
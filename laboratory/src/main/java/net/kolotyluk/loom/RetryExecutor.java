@@ -0,0 +1,205 @@
+package net.kolotyluk.loom;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * <h1>Retries</h1>
+ * <p>
+ *     When a call to a {@link Downstream} fails, the simplest thing is to try again, and for occasional failures
+ *     that works well. But when the downstream is failing because it is overloaded, every retry is more load, and
+ *     with a million Virtual Threads all retrying at once, a brief overload becomes a <em>retry storm</em>, where
+ *     the downstream spends all its capacity on retries, most of which fail too.
+ * </p>
+ * <pre>
+ * var retry = new RetryExecutor(3, Duration.ofMillis(1), Duration.ofMillis(100), 0.1);
+ * . . .
+ * var result = retry.call(() -> downstream.call(value));
+ * . . .
+ * System.out.println(retry); // amplification
+ * </pre>
+ * <h2>Backoff</h2>
+ * <p>
+ *     Between attempts we sleep with <em>decorrelated jitter</em>, from the AWS Architecture Blog
+ *     <a href="https://aws.amazon.com/blogs/architecture/exponential-backoff-and-jitter/">Exponential Backoff And
+ *     Jitter</a>, where each delay is random between <tt>baseDelay</tt> and three times the previous delay, capped
+ *     at <tt>maximumDelay</tt>. The randomness spreads out retries that would otherwise all arrive together. On a
+ *     Virtual Thread the sleep unmounts, so a million threads backing off cost only memory.
+ * </p>
+ * <h2>Retry Budget</h2>
+ * <p>
+ *     Backoff alone does not limit the total load, it only spreads it out. The budget is a token bucket, where
+ *     each call adds <tt>budgetRatio</tt> of a token, up to <tt>budgetCapacity</tt>, and each retry takes a whole
+ *     token. With a ratio of 0.1, retries can add at most about 10% to the load, no matter how many calls fail,
+ *     while the capacity lets a burst of occasional failures all retry, once enough calls have filled it. When the
+ *     bucket is empty, the call fails with its last exception, without retrying.
+ * </p>
+ * <p>
+ *     Note: the bucket starts empty, not full, and is only filled by calls. Otherwise the first
+ *     <tt>budgetCapacity</tt> retries would be free, so a short run, or a failure right after startup, would be
+ *     limited by the capacity rather than the ratio.
+ * </p>
+ * <p>
+ *     The number to watch is the <em>amplification</em>, attempts per call, which is how much load we put on the
+ *     downstream for the load we were asked to put on it.
+ * </p>
+ */
+public class RetryExecutor {
+
+    /**
+     * Tokens are kept in thousandths, so fractional deposits need no floating point.
+     */
+    static final long tokenScale = 1000;
+
+    final int maximumAttempts;
+    final long baseDelay;
+    final long maximumDelay;
+    final long deposit;
+    final long capacity;
+    final Predicate<Throwable> retryable;
+
+    final AtomicLong tokens;
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong attempts = new AtomicLong();
+    final AtomicLong successes = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong budgetExhausted = new AtomicLong();
+
+    /**
+     * Retry any exception, with a budget capacity of 100 retries.
+     * @param maximumAttempts most attempts per call, including the first
+     * @param baseDelay shortest delay between attempts
+     * @param maximumDelay longest delay between attempts
+     * @param budgetRatio tokens added per call, roughly the fraction of calls that may be retried
+     */
+    public RetryExecutor(int maximumAttempts, Duration baseDelay, Duration maximumDelay, double budgetRatio) {
+        this(maximumAttempts, baseDelay, maximumDelay, budgetRatio, 100, exception -> true);
+    }
+
+    /**
+     * @param maximumAttempts most attempts per call, including the first
+     * @param baseDelay shortest delay between attempts
+     * @param maximumDelay longest delay between attempts
+     * @param budgetRatio tokens added per call, roughly the fraction of calls that may be retried, or
+     *                    {@link Double#POSITIVE_INFINITY} for no budget
+     * @param budgetCapacity most tokens the budget can hold, starting from none
+     * @param retryable which exceptions are worth retrying
+     */
+    public RetryExecutor(int maximumAttempts, Duration baseDelay, Duration maximumDelay, double budgetRatio, int budgetCapacity, Predicate<Throwable> retryable) {
+        if (maximumAttempts < 1) throw new IllegalArgumentException("maximumAttempts must be positive");
+        if (maximumDelay.compareTo(baseDelay) < 0) throw new IllegalArgumentException("maximumDelay is less than baseDelay");
+        this.maximumAttempts = maximumAttempts;
+        this.baseDelay = baseDelay.toNanos();
+        this.maximumDelay = maximumDelay.toNanos();
+        this.capacity = Double.isInfinite(budgetRatio) ? Long.MAX_VALUE : budgetCapacity * tokenScale;
+        this.deposit = Double.isInfinite(budgetRatio) ? 0 : (long) (budgetRatio * tokenScale);
+        this.retryable = retryable;
+        this.tokens = new AtomicLong();
+    }
+
+    /**
+     * @param maximumAttempts most attempts per call, including the first
+     * @return an executor that retries immediately, with no budget, which is what not to do
+     */
+    public static RetryExecutor naive(int maximumAttempts) {
+        return new RetryExecutor(maximumAttempts, Duration.ZERO, Duration.ZERO, Double.POSITIVE_INFINITY, 0, exception -> true);
+    }
+
+    /**
+     * Call <tt>request</tt>, retrying failures that are retryable, while there are attempts and budget left.
+     * @param request to make, which must be safe to make more than once
+     * @return result of the first successful attempt
+     * @param <T> type of result
+     * @throws Exception of the last attempt, with those of earlier attempts suppressed
+     */
+    public <T> T call(Callable<T> request) throws Exception {
+        calls.incrementAndGet();
+        deposit();
+        var delay = baseDelay;
+        Exception failure = null;
+        for (int attempt = 1; ; attempt++) {
+            attempts.incrementAndGet();
+            try {
+                var result = request.call();
+                successes.incrementAndGet();
+                return result;
+            } catch (Exception e) {
+                if (failure != null && failure != e) e.addSuppressed(failure); // the same instance may be thrown again
+                failure = e;
+            }
+            if (attempt == maximumAttempts || !retryable.test(failure)) throw failure;
+            if (!withdraw()) {
+                budgetExhausted.incrementAndGet();
+                throw failure;
+            }
+            retries.incrementAndGet();
+            delay = nextDelay(delay);
+            if (delay > 0) Thread.sleep(Duration.ofNanos(delay));
+        }
+    }
+
+    /**
+     * Decorrelated jitter, random between the base delay and three times the previous delay, capped.
+     * @param previous delay
+     * @return next delay
+     */
+    long nextDelay(long previous) {
+        var upper = Math.max(baseDelay + 1, Math.min(maximumDelay, previous * 3));
+        return Math.min(maximumDelay, ThreadLocalRandom.current().nextLong(baseDelay, upper + 1));
+    }
+
+    void deposit() {
+        if (deposit == 0) return;
+        var current = tokens.get();
+        while (current < capacity && !tokens.compareAndSet(current, Math.min(capacity, current + deposit)))
+            current = tokens.get();
+    }
+
+    boolean withdraw() {
+        if (capacity == Long.MAX_VALUE) return true;
+        var current = tokens.get();
+        while (current >= tokenScale) {
+            if (tokens.compareAndSet(current, current - tokenScale)) return true;
+            current = tokens.get();
+        }
+        return false;
+    }
+
+    /**
+     * @return calls made via {@link #call(Callable)}
+     */
+    public long calls() {
+        return calls.get();
+    }
+
+    /**
+     * @return attempts made, including retries
+     */
+    public long attempts() {
+        return attempts.get();
+    }
+
+    /**
+     * @return calls that eventually succeeded
+     */
+    public long successes() {
+        return successes.get();
+    }
+
+    /**
+     * @return attempts per call, 1.0 when nothing was retried
+     */
+    public double amplification() {
+        var calls = this.calls.get();
+        return calls == 0 ? 1.0 : (double) attempts.get() / calls;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RetryExecutor[calls = %d, attempts = %d, successes = %d, retries = %d, budget exhausted = %d, amplification = %.2f]",
+                calls.get(), attempts.get(), successes.get(), retries.get(), budgetExhausted.get(), amplification());
+    }
+}
@@ -0,0 +1,148 @@
+package net.kolotyluk.loom;
+
+import jdk.incubator.concurrent.StructuredTaskScope;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * <h1>Scope Tree</h1>
+ * <p>
+ *     In a real application, structured concurrency does not stop at one level. A request handler forks calls to a
+ *     few services, each of which forks calls of its own, and so on, so the call tree is a tree of nested
+ *     {@link StructuredTaskScope}s, each subtask the owner of the scope below it. Every node of that tree costs a
+ *     scope, a fork, a thread, a join and a close, whether its subtree does a lot of work or next to none.
+ * </p>
+ * <p>
+ *     A scope tree is a synthetic version of that call tree, where each node forks <tt>fanOut</tt> children in a
+ *     {@link StructuredTaskScope.ShutdownOnFailure}, down to <tt>depth</tt> levels, and each leaf calls
+ *     <tt>leaf</tt>, so we can measure what the tree itself costs, as a function of its shape.
+ * </p>
+ * <pre>
+ * var tree = new ScopeTree(8, 3, 0, virtualThreadFactory, () -> 1);
+ * var leaves = tree.compute(); // 512 leaves, 73 scopes, 584 threads
+ * </pre>
+ * <h2>Inlining Small Subtrees</h2>
+ * <p>
+ *     Near the bottom of the tree, a subtree is often so little work that forking it costs more than running it.
+ *     When a subtree has <tt>inlineBelow</tt> or fewer leaves, it runs on the thread of its parent, sequentially,
+ *     with no scopes, no forks, and no threads at all. So an <tt>inlineBelow</tt> of <tt>fanOut</tt> removes the
+ *     whole bottom level of threads, which is most of them, and an <tt>inlineBelow</tt> of 0 never inlines.
+ * </p>
+ * <p>
+ *     Note: inlined subtrees lose their concurrency, so this is only a win for subtrees that are computational,
+ *     and small. A subtree that blocks, such as on I/O, still wants its own threads, however small it is.
+ * </p>
+ * <p>
+ *     See <tt>benchmarks/ScopeNesting</tt> for what the tree costs, by fan-out, depth and <tt>inlineBelow</tt>.
+ *     There is no default <tt>inlineBelow</tt>, because where inlining starts to pay depends on the leaf, and on
+ *     the machine, and it has not been measured yet, so run ScopeNesting before choosing one.
+ * </p>
+ */
+public class ScopeTree {
+
+    final int fanOut;
+    final int depth;
+    final long inlineBelow;
+    final ThreadFactory threadFactory;
+    final LongSupplier leaf;
+    final long[] leavesBelow;
+    final LongAdder scopes = new LongAdder();
+    final LongAdder forks = new LongAdder();
+    final LongAdder inlined = new LongAdder();
+
+    /**
+     * @param fanOut children of each node
+     * @param depth levels of scopes, 0 is just a leaf
+     * @param inlineBelow largest number of leaves in a subtree that runs in its parent thread
+     * @param threadFactory to create the subtask threads
+     * @param leaf work at each leaf, whose results are summed
+     */
+    public ScopeTree(int fanOut, int depth, long inlineBelow, ThreadFactory threadFactory, LongSupplier leaf) {
+        if (fanOut < 1) throw new IllegalArgumentException("fanOut must be positive");
+        if (depth < 0) throw new IllegalArgumentException("depth must not be negative");
+        this.fanOut = fanOut;
+        this.depth = depth;
+        this.inlineBelow = inlineBelow;
+        this.threadFactory = threadFactory;
+        this.leaf = leaf;
+        leavesBelow = new long[depth + 1];
+        leavesBelow[0] = 1;
+        for (int level = 1; level <= depth; level++)
+            leavesBelow[level] = Math.multiplyExact(leavesBelow[level - 1], fanOut);
+    }
+
+    /**
+     * @return sum of the results of all the leaves
+     * @throws InterruptedException if interrupted while waiting for a subtask
+     * @throws ExecutionException if any leaf failed
+     */
+    public long compute() throws InterruptedException, ExecutionException {
+        return compute(depth);
+    }
+
+    long compute(int level) throws InterruptedException, ExecutionException {
+        if (level == 0) return leaf.getAsLong();
+        if (leavesBelow[level] <= inlineBelow) {
+            inlined.increment();
+            return inline(level);
+        }
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure(null, threadFactory)) {
+            scopes.increment();
+            @SuppressWarnings("unchecked")
+            var children = (Future<Long>[]) new Future[fanOut];
+            for (int child = 0; child < fanOut; child++)
+                children[child] = scope.fork(() -> compute(level - 1));
+            forks.add(fanOut);
+            // A failure deep down is already an ExecutionException by the time it gets here, don't wrap it again
+            scope.join().throwIfFailed(e -> e instanceof ExecutionException executionException ? executionException : new ExecutionException(e));
+            long sum = 0;
+            for (var child : children) sum += child.resultNow();
+            return sum;
+        }
+    }
+
+    long inline(int level) {
+        if (level == 0) return leaf.getAsLong();
+        long sum = 0;
+        for (int child = 0; child < fanOut; child++) sum += inline(level - 1);
+        return sum;
+    }
+
+    /**
+     * @return leaves in the whole tree
+     */
+    public long leaves() {
+        return leavesBelow[depth];
+    }
+
+    /**
+     * @return scopes opened so far
+     */
+    public long scopes() {
+        return scopes.sum();
+    }
+
+    /**
+     * @return subtasks forked so far, each one a thread
+     */
+    public long forks() {
+        return forks.sum();
+    }
+
+    /**
+     * @return subtrees run in their parent thread so far
+     */
+    public long inlined() {
+        return inlined.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ScopeTree[fan out = %d, depth = %d, inline below = %d, leaves = %d, scopes = %d, forks = %d, inlined = %d]",
+                fanOut, depth, inlineBelow, leaves(), scopes(), forks(), inlined());
+    }
+}
@@ -0,0 +1,121 @@
+package net.kolotyluk.loom;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * <h1>Single Flight</h1>
+ * <p>
+ *     With Virtual Threads it is cheap to have a thread per request, so when many requests ask the same question
+ *     at the same time, such as the same candidate prime, or the same row of a database, each thread pays the full
+ *     {@link Lag}, and the backend sees every duplicate. A cache does not help, because none of them has an answer
+ *     to cache yet.
+ * </p>
+ * <p>
+ *     With a single flight, named after Go's <tt>golang.org/x/sync/singleflight</tt>, the first caller for a key
+ *     makes the call, and any callers for the same key that arrive while it is in flight wait for that result
+ *     instead of making their own.
+ * </p>
+ * <pre>
+ * var singleFlight = new SingleFlight&lt;Long&gt;();
+ * LongFunction&lt;Long&gt; task = key -> singleFlight.call(key, downstream.task());
+ * . . .
+ * System.out.println(singleFlight); // how many calls were shared
+ * </pre>
+ * <p>
+ *     The leader runs the function in its own thread, so there is no extra thread per flight, and the followers
+ *     just park on the {@link CompletableFuture}. Once the leader completes, the key is removed, so a later caller
+ *     starts a new flight, and never sees a stale result. If the function throws, every caller in the flight gets
+ *     the same exception.
+ * </p>
+ * <p>
+ *     Note: the {@link CompletableFuture} is only allocated by a leader, once per flight, as followers look up the
+ *     flight before creating one. The keys are primitive <tt>long</tt> in the API, but are boxed to look them up in
+ *     the map, which is a short lived allocation per call, outside the small {@link Long} cache, unless the JIT
+ *     can eliminate it.
+ * </p>
+ * @param <V> type of result
+ */
+public class SingleFlight<V> {
+
+    final ConcurrentHashMap<Long, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong executions = new AtomicLong();
+
+    /**
+     * Call <tt>function</tt> with <tt>key</tt>, unless a call for the same key is already in flight, in which case
+     * wait for its result instead.
+     * @param key to coalesce on
+     * @param function to call, which must return the same result for the same key
+     * @return result of the call in flight
+     */
+    public V call(long key, LongFunction<V> function) {
+        calls.incrementAndGet();
+        // Look before leaping, so a follower allocates nothing but the boxed key
+        var existing = flights.get(key);
+        if (existing != null) return follow(existing);
+        var flight = new CompletableFuture<V>();
+        existing = flights.putIfAbsent(key, flight);
+        if (existing != null) return follow(existing);
+        executions.incrementAndGet();
+        try {
+            var result = function.apply(key);
+            flights.remove(key, flight);
+            flight.complete(result);
+            return result;
+        } catch (Throwable t) {
+            flights.remove(key, flight);
+            flight.completeExceptionally(t);
+            throw t;
+        }
+    }
+
+    V follow(CompletableFuture<V> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            if (e.getCause() instanceof Error cause) throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * @return calls made via {@link #call(long, LongFunction)}
+     */
+    public long calls() {
+        return calls.get();
+    }
+
+    /**
+     * @return calls that actually ran the function
+     */
+    public long executions() {
+        return executions.get();
+    }
+
+    /**
+     * @return calls that shared the result of another call
+     */
+    public long shared() {
+        return calls.get() - executions.get();
+    }
+
+    /**
+     * @return number of calls in flight right now
+     */
+    public int inFlight() {
+        return flights.size();
+    }
+
+    @Override
+    public String toString() {
+        var calls = this.calls.get();
+        var shared = calls - executions.get();
+        return String.format("SingleFlight[calls = %d, executions = %d, shared = %d (%.1f%%)]",
+                calls, calls - shared, shared, calls == 0 ? 0.0 : 100.0 * shared / calls);
+    }
+}
@@ -0,0 +1,242 @@
+package net.kolotyluk.loom;
+
+import jdk.incubator.concurrent.StructuredTaskScope;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
+
+/**
+ * <h1>Structured Recursion</h1>
+ * <p>
+ *     Most of the experiments here are flat fan-out, one owner forking many subtasks. The other half of parallelism
+ *     is divide and conquer: split the problem in two, solve the halves in parallel, and combine their results,
+ *     recursively, until the pieces are small enough to just solve. This is what {@link RecursiveTask} and the
+ *     {@link ForkJoinPool} were designed for, and what parallel streams use under the covers.
+ * </p>
+ * <p>
+ *     With {@link StructuredTaskScope} the recursion is just nested scopes, each subtask being the owner of its own
+ *     scope for its half, so the tree of scopes is the tree of the recursion, and an exception anywhere shuts down
+ *     the scope that catches it, which interrupts the threads it forked.
+ * </p>
+ * <p>
+ *     Shutting down a scope only interrupts the threads it forked, not its owner, and the owner is busy computing the
+ *     right half itself, one level after another, all in the same thread. So before each level, and each leaf, the
+ *     owner checks every scope it owns on the way down, and abandons its half once any of them is shut down, and the
+ *     scope that failed reports why. The forked left halves just check whether they were interrupted. So a failure
+ *     stops any new splits or leaves from starting below the scope that catches it, but a left half already forked
+ *     into an inner scope of the owner, which was not shut down, still runs until the owner gets back up to it.
+ * </p>
+ * <pre>
+ * var sum = new StructuredRecursion&lt;Long&gt;(10_000, 64, virtualThreadFactory,
+ *         (from, to) -> LongStream.range(from, to).map(index -> array[(int) index]).sum(),
+ *         Long::sum);
+ * var total1 = sum.compute(0, array.length);            // nested StructuredTaskScopes on Virtual Threads
+ * var total2 = sum.forkJoin(0, array.length, pool);     // the same thing as a RecursiveTask
+ * var total3 = sum.sequential(0, array.length);         // no parallelism at all
+ * </pre>
+ * <h2>Grain and Depth</h2>
+ * <p>
+ *     A range of <tt>grain</tt> or fewer items, or one <tt>maximumDepth</tt> splits down, is not split any further,
+ *     but solved in the current thread. Too coarse, and there are fewer pieces than cores, too fine, and the cost
+ *     of forking a thread, a few microseconds for a Virtual Thread and its scope, outweighs the work it does. Each
+ *     level of depth doubles the number of threads, so a depth of 20 is a million threads.
+ * </p>
+ * <p>
+ *     Like {@link RecursiveTask}, each level forks only the left half, and computes the right half itself, so
+ *     there is one thread per split, not two, and the owner has something to do besides wait.
+ * </p>
+ * <p>
+ *     Note: a {@link ForkJoinPool} worker that waits in {@link RecursiveTask#join()} runs other tasks while it
+ *     waits, so it never blocks. A Virtual Thread waiting in {@link StructuredTaskScope#join()} just parks, and
+ *     unmounts, so its carrier can run other threads, which gets the same effect the other way around, at the cost
+ *     of a whole thread, rather than just a task object, per split.
+ * </p>
+ * @param <R> type of result
+ */
+public class StructuredRecursion<R> {
+
+    /**
+     * Solve a range of a problem without splitting it.
+     * @param <R> type of result
+     */
+    @FunctionalInterface
+    public interface Leaf<R> {
+        /**
+         * @param from inclusive start of the range
+         * @param to exclusive end of the range
+         * @return result for the range
+         */
+        R solve(long from, long to);
+    }
+
+    final long grain;
+    final int maximumDepth;
+    final ThreadFactory threadFactory;
+    final Leaf<R> leaf;
+    final BinaryOperator<R> combine;
+    final LongAdder forks = new LongAdder();
+    final LongAdder leaves = new LongAdder();
+
+    /**
+     * Thrown up the right spine when an enclosing scope of the same thread was shut down, and replaced by the
+     * failure of that scope before it leaves {@link #compute(long, long)}.
+     */
+    static class Abandoned extends RuntimeException {
+        Abandoned() {
+            super("enclosing scope was shut down", null, false, false); // no stack trace, it is never seen
+        }
+    }
+
+    /**
+     * The scopes owned by the current thread, from the innermost out, that the right half is computed within.
+     */
+    record Spine(StructuredTaskScope<?> scope, Spine outer) {
+        boolean isShutdown() {
+            for (var spine = this; spine != null; spine = spine.outer)
+                if (spine.scope.isShutdown()) return true;
+            return false;
+        }
+    }
+
+    /**
+     * @param grain largest range to solve without splitting
+     * @param maximumDepth most times to split, regardless of grain
+     * @param threadFactory to create the subtask threads of {@link #compute(long, long)}
+     * @param leaf to solve a range without splitting
+     * @param combine results of the left and right halves, in that order
+     */
+    public StructuredRecursion(long grain, int maximumDepth, ThreadFactory threadFactory, Leaf<R> leaf, BinaryOperator<R> combine) {
+        if (grain < 1) throw new IllegalArgumentException("grain must be positive");
+        if (maximumDepth < 0) throw new IllegalArgumentException("maximumDepth must not be negative");
+        this.grain = grain;
+        this.maximumDepth = maximumDepth;
+        this.threadFactory = threadFactory;
+        this.leaf = leaf;
+        this.combine = combine;
+    }
+
+    boolean isLeaf(long from, long to, int depth) {
+        return to - from <= grain || depth >= maximumDepth;
+    }
+
+    /**
+     * Solve the range with nested {@link StructuredTaskScope}s.
+     * @param from inclusive start of the range
+     * @param to exclusive end of the range
+     * @return combined result for the range
+     * @throws InterruptedException if interrupted while waiting for a subtask
+     * @throws ExecutionException if any subtask failed
+     */
+    public R compute(long from, long to) throws InterruptedException, ExecutionException {
+        return compute(from, to, 0, null);
+    }
+
+    R compute(long from, long to, int depth, Spine spine) throws InterruptedException, ExecutionException {
+        // Don't start any more work for a scope that has already failed
+        if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+        if (spine != null && spine.isShutdown()) throw new Abandoned();
+        if (isLeaf(from, to, depth)) {
+            leaves.increment();
+            return leaf.solve(from, to);
+        }
+        var middle = (from + to) >>> 1;
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure(null, threadFactory)) {
+            forks.increment();
+            // The left half starts a spine of its own, in its own thread, and is interrupted if this scope shuts down
+            var left = scope.fork(() -> compute(from, middle, depth + 1, null));
+            R right;
+            try {
+                right = compute(middle, to, depth + 1, new Spine(scope, spine));
+            }
+            catch (Throwable t) {
+                // Don't leave the left half running, or the scope unjoined, nor lose t if interrupted doing so
+                scope.shutdown();
+                try {
+                    scope.join();
+                } catch (InterruptedException e) {
+                    t.addSuppressed(e);
+                    Thread.currentThread().interrupt();
+                }
+                // If it was this scope that was shut down, its failure is the real one, otherwise pass it on up
+                if (t instanceof Abandoned)
+                    scope.throwIfFailed(e -> e instanceof ExecutionException executionException ? executionException : new ExecutionException(e));
+                throw t;
+            }
+            // A failure deep down is already an ExecutionException by the time it gets here, don't wrap it again
+            scope.join().throwIfFailed(e -> e instanceof ExecutionException executionException ? executionException : new ExecutionException(e));
+            return combine.apply(left.resultNow(), right);
+        }
+    }
+
+    class Task extends RecursiveTask<R> {
+        final long from;
+        final long to;
+        final int depth;
+
+        Task(long from, long to, int depth) {
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+        }
+
+        @Override
+        protected R compute() {
+            if (isLeaf(from, to, depth)) {
+                leaves.increment();
+                return leaf.solve(from, to);
+            }
+            var middle = (from + to) >>> 1;
+            var left = new Task(from, middle, depth + 1);
+            forks.increment();
+            left.fork();
+            var right = new Task(middle, to, depth + 1).compute();
+            return combine.apply(left.join(), right);
+        }
+    }
+
+    /**
+     * Solve the range with the equivalent {@link RecursiveTask}, same grain, same depth, same splits.
+     * @param from inclusive start of the range
+     * @param to exclusive end of the range
+     * @param pool to run the tasks in
+     * @return combined result for the range
+     */
+    public R forkJoin(long from, long to, ForkJoinPool pool) {
+        return pool.invoke(new Task(from, to, 0));
+    }
+
+    /**
+     * Solve the whole range in the current thread, the baseline for the other two.
+     * @param from inclusive start of the range
+     * @param to exclusive end of the range
+     * @return result for the range
+     */
+    public R sequential(long from, long to) {
+        return leaf.solve(from, to);
+    }
+
+    /**
+     * @return splits so far, each one a thread for {@link #compute(long, long)}, or a task for
+     * {@link #forkJoin(long, long, ForkJoinPool)}
+     */
+    public long forks() {
+        return forks.sum();
+    }
+
+    /**
+     * @return ranges solved without splitting so far
+     */
+    public long leaves() {
+        return leaves.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StructuredRecursion[grain = %d, maximum depth = %d, forks = %d, leaves = %d]",
+                grain, maximumDepth, forks(), leaves());
+    }
+}
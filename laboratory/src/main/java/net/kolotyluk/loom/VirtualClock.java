@@ -0,0 +1,152 @@
+package net.kolotyluk.loom;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.function.LongFunction;
+
+/**
+ * <h1>Virtual Time</h1>
+ * <p>
+ *     A transactional experiment spends almost all of its wall time in {@link Lag#sleep()}, so running one at
+ *     10,000,000 tasks takes a long time, and because {@link Lag} draws its durations from a shared random
+ *     generator, no two runs are the same. For quick <em>what-if</em> capacity studies we do not need to actually wait.
+ * </p>
+ * <p>
+ *     While a task runs under {@link #simulate(LongFunction, long, long)}, {@link Lag#sleep()} does not sleep, it
+ *     draws its duration from a seeded random generator and advances the task's virtual clock instead. Once every
+ *     task has run, a simple discrete-event simulation schedules the tasks, in order, onto <tt>concurrency</tt>
+ *     slots, where each task occupies its slot for its virtual duration. From that we get the simulated makespan,
+ *     throughput, and latency distribution, and the same seed always produces the same answer.
+ * </p>
+ * <p>
+ *     Every task is submitted at time zero, so the latency of a task is the time it waits for a slot, plus the time
+ *     it spends in {@link Lag}, which is when its slot becomes free again. With fewer slots, the tasks queue longer,
+ *     and the latency grows, even though the time in {@link Lag} is the same.
+ * </p>
+ * <pre>
+ * var report = new VirtualClock(42).simulate(Experiment02_Throughput.isPrimeTransactionally, 10_000_000, 10_000);
+ * System.out.println(report);
+ * </pre>
+ * <h2>Caveats</h2>
+ * <p>
+ *     Only the {@link Lag} is virtual. The tasks are run one at a time on the calling thread, so any CPU work they do
+ *     is real, but it is not counted in the simulated time, and neither is any contention between tasks. This makes
+ *     it a model of an I/O bound system with a given Level of concurrency, as in
+ *     <a href="https://en.wikipedia.org/wiki/Little%27s_law">Little's Law</a>, not a replacement for real-time
+ *     benchmarks.
+ * </p>
+ */
+public final class VirtualClock {
+
+    static final ThreadLocal<VirtualClock> current = new ThreadLocal<>();
+
+    final SplittableRandom random;
+    long elapsed;
+
+    /**
+     * @param seed for the random durations drawn by {@link Lag}
+     */
+    public VirtualClock(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    /**
+     * @return the clock of the simulation running on this thread, or null if we are running in real time
+     */
+    static VirtualClock current() {
+        return current.get();
+    }
+
+    /**
+     * Advance the clock of the current task by a duration drawn from the lag.
+     * @param lag to draw the duration from
+     * @return Duration of virtual time that passed
+     */
+    Duration advance(Lag lag) {
+        var duration = lag.getDuration(random);
+        elapsed += duration.toNanos();
+        return duration;
+    }
+
+    /**
+     * Run <tt>task</tt> for items <tt>0</tt> until <tt>limit</tt> in virtual time.
+     * @param task to simulate, which should induce its latency via {@link Lag}
+     * @param limit number of tasks
+     * @param concurrency number of tasks in flight at once, use {@link Long#MAX_VALUE} for unbounded
+     * @return simulated throughput and latency
+     */
+    public Report simulate(LongFunction<?> task, long limit, long concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency must be positive");
+
+        var durations = new long[Math.toIntExact(limit)];
+        var startTime = System.nanoTime();
+
+        current.set(this);
+        try {
+            for (long item = 0; item < limit; item++) {
+                elapsed = 0;
+                task.apply(item);
+                durations[(int) item] = elapsed;
+            }
+        }
+        finally {
+            current.remove();
+        }
+
+        // Every task is submitted at time zero, and waits for the earliest free slot, so its latency is its end.
+        // The slots are a min-heap of the times they become free.
+        var slots = new long[(int) Math.min(concurrency, Math.max(limit, 1))];
+        var latencies = new Latencies(durations.length);
+        var makespan = 0L;
+        for (int index = 0; index < limit; index++) {
+            var end = slots[0] + durations[index];
+            latencies.record(end);
+            makespan = Math.max(makespan, end);
+            siftDown(slots, end);
+        }
+
+        var wallTime = Duration.ofNanos(System.nanoTime() - startTime);
+        return new Report(limit, concurrency, Duration.ofNanos(makespan), latencies.summary(), wallTime);
+    }
+
+    /**
+     * Replace the root of the min-heap and restore the heap property.
+     */
+    static void siftDown(long[] heap, long value) {
+        int index = 0;
+        int half = heap.length >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < heap.length && heap[child + 1] < heap[child]) child++;
+            if (value <= heap[child]) break;
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = value;
+    }
+
+    /**
+     * @param tasks number of tasks simulated
+     * @param concurrency number of tasks in flight at once
+     * @param makespan virtual time from the first task starting to the last task ending
+     * @param latency distribution of the virtual time from submitting each task to its end, waiting for a slot and
+     *                in {@link Lag}
+     * @param wallTime real time it took to run the simulation
+     */
+    public record Report(long tasks, long concurrency, Duration makespan, Latencies.Summary latency, Duration wallTime) {
+
+        /**
+         * @return simulated tasks per second
+         */
+        public double throughput() {
+            return makespan.isZero() ? Double.POSITIVE_INFINITY : tasks * 1e9 / makespan.toNanos();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("tasks = %d, concurrency = %s, makespan = %d ms, throughput = %.1f tasks/second, wall time = %d ms%n    latency: %s",
+                    tasks, concurrency == Long.MAX_VALUE ? "unbounded" : Long.toString(concurrency),
+                    makespan.toMillis(), throughput(), wallTime.toMillis(), latency);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package net.kolotyluk.loom;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+
+import static net.kolotyluk.loom.AdmissionController.Policy.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionControllerTests {
+
+    static final Duration target = Duration.ofMillis(20);
+    static final Duration interval = Duration.ofMillis(200);
+
+    /**
+     * With one slot, a call made from inside another call can never be admitted, so it shows how long the
+     * policy lets it wait before rejecting it.
+     * @return how long the inner call waited
+     */
+    static long rejectedWait(AdmissionController admission) throws Exception {
+        return admission.call(() -> {
+            var startTime = System.nanoTime();
+            assertThrows(AdmissionController.Rejected.class, () -> admission.call(() -> 1L));
+            return System.nanoTime() - startTime;
+        });
+    }
+
+    @Test
+    public void inFlightRejectsRightAway() throws Exception {
+        var admission = new AdmissionController(IN_FLIGHT, 1, target, interval);
+        assertTrue(rejectedWait(admission) < target.toNanos());
+        assertEquals(1L, admission.call(() -> 1L), "the slot is free again");
+        assertEquals(2, admission.admitted());
+        assertEquals(1, admission.rejected());
+    }
+
+    @Test
+    public void queueAgeWaitsForTarget() throws Exception {
+        var admission = new AdmissionController(QUEUE_AGE, 1, target, interval);
+        var wait = rejectedWait(admission);
+        assertTrue(wait >= target.toNanos(), "waited " + wait / 1e6 + " ms");
+        assertTrue(wait < interval.toNanos(), "waited " + wait / 1e6 + " ms");
+        assertEquals(1, admission.rejected());
+    }
+
+    @Test
+    public void codelAbsorbsBurstThenShedsStandingQueue() throws Exception {
+        var admission = new AdmissionController(CODEL, 1, target, interval);
+        var release = new CountDownLatch(1);
+        var admitted = new CountDownLatch(1);
+        var holder = Thread.ofVirtual().start(() -> {
+            try {
+                admission.call(() -> {
+                    admitted.countDown();
+                    release.await();
+                    return null;
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        admitted.await();
+        try {
+            // The queue was empty just now, so this is a burst, and may wait the whole interval
+            var burst = rejected(admission);
+            assertTrue(burst >= interval.toNanos(), "burst waited " + burst / 1e6 + " ms");
+            // Nothing has waited less than target for a whole interval, so this is a standing queue
+            var standing = rejected(admission);
+            assertTrue(standing >= target.toNanos(), "standing queue waited " + standing / 1e6 + " ms");
+            assertTrue(standing < interval.toNanos(), "standing queue waited " + standing / 1e6 + " ms");
+        }
+        finally {
+            release.countDown();
+            holder.join();
+        }
+        assertEquals(2, admission.rejected());
+        assertEquals(1L, admission.call(() -> 1L));
+    }
+
+    static long rejected(AdmissionController admission) {
+        var startTime = System.nanoTime();
+        assertThrows(AdmissionController.Rejected.class, () -> admission.call(() -> 1L));
+        return System.nanoTime() - startTime;
+    }
+}
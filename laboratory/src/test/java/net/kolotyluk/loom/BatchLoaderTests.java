@@ -0,0 +1,71 @@
+package net.kolotyluk.loom;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchLoaderTests {
+
+    static List<Long> doubleAll(long[] keys) {
+        return LongStream.of(keys).map(key -> key * 2).boxed().toList();
+    }
+
+    @Test
+    public void fullBatchDoesNotWaitForTheDelay() throws Exception {
+        var loader = new BatchLoader<>(4, Duration.ofSeconds(30), BatchLoaderTests::doubleAll);
+        var startTime = System.nanoTime();
+        var futures = new ArrayList<Future<Long>>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long key = 0; key < 8; key++) {
+                final var k = key;
+                futures.add(executor.submit(() -> loader.load(k)));
+            }
+        }
+        assertTrue(System.nanoTime() - startTime < Duration.ofSeconds(10).toNanos(), "batches closed by size, not time");
+        for (int key = 0; key < 8; key++) assertEquals(key * 2L, futures.get(key).get(), "each caller gets its own result");
+        assertEquals(8, loader.loads());
+        assertEquals(2, loader.batches());
+        assertEquals(4.0, loader.averageBatchSize());
+    }
+
+    @Test
+    public void partialBatchClosesAfterTheDelay() {
+        var delay = Duration.ofMillis(50);
+        var loader = new BatchLoader<>(100, delay, BatchLoaderTests::doubleAll);
+        var startTime = System.nanoTime();
+        assertEquals(6L, loader.load(3));
+        assertTrue(System.nanoTime() - startTime >= delay.toNanos());
+        assertEquals(1, loader.batches());
+    }
+
+    @Test
+    public void everyCallerGetsTheFailure() throws Exception {
+        var failure = new IllegalStateException("failed");
+        var loader = new BatchLoader<Long>(3, Duration.ofSeconds(30), keys -> { throw failure; });
+        var futures = new ArrayList<Future<Long>>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long key = 0; key < 3; key++) {
+                final var k = key;
+                futures.add(executor.submit(() -> loader.load(k)));
+            }
+        }
+        for (var future : futures) {
+            var e = assertThrows(ExecutionException.class, future::get);
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void wrongNumberOfResultsFails() {
+        var loader = new BatchLoader<Long>(1, Duration.ofSeconds(30), keys -> List.of());
+        assertThrows(IllegalStateException.class, () -> loader.load(1));
+    }
+}
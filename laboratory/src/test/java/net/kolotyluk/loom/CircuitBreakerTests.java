@@ -0,0 +1,79 @@
+package net.kolotyluk.loom;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CircuitBreakerTests {
+
+    static final Duration openDuration = Duration.ofMillis(50);
+
+    // Opens at half of at least 4 calls failing, never for slow calls, and tries 2 calls when half open
+    static CircuitBreaker breaker() {
+        return new CircuitBreaker(10, 4, 0.5, 1.0, Duration.ofSeconds(10), openDuration, 2);
+    }
+
+    static void fail(CircuitBreaker breaker) {
+        assertThrows(IllegalStateException.class, () -> breaker.call(() -> { throw new IllegalStateException("failed"); }));
+    }
+
+    static void open(CircuitBreaker breaker) throws Exception {
+        assertEquals(1L, breaker.call(() -> 1L));
+        fail(breaker);
+        fail(breaker);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state(), "fewer than the minimum calls");
+        fail(breaker);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    }
+
+    @Test
+    public void closedOpenHalfOpenClosed() throws Exception {
+        var breaker = breaker();
+        open(breaker);
+        assertEquals(1, breaker.opened());
+
+        assertThrows(CircuitBreaker.Open.class, () -> breaker.call(() -> 1L));
+        assertEquals(1, breaker.rejected());
+
+        Thread.sleep(openDuration.multipliedBy(2));
+        assertEquals(1L, breaker.call(() -> 1L));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        assertEquals(2L, breaker.call(() -> 2L));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+
+        // A new window, so the failures from before it opened are forgotten
+        fail(breaker);
+        fail(breaker);
+        assertEquals(3L, breaker.call(() -> 3L));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    }
+
+    @Test
+    public void failedTrialOpensAgain() throws Exception {
+        var breaker = breaker();
+        open(breaker);
+
+        Thread.sleep(openDuration.multipliedBy(2));
+        fail(breaker);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertEquals(2, breaker.opened());
+        assertThrows(CircuitBreaker.Open.class, () -> breaker.call(() -> 1L));
+    }
+
+    @Test
+    public void halfOpenOnlyPermitsTrialCalls() throws Exception {
+        var breaker = breaker();
+        open(breaker);
+
+        Thread.sleep(openDuration.multipliedBy(2));
+        // Each trial call makes the next one while it is still in flight, so the third finds no permit left
+        var result = breaker.call(() -> breaker.call(() -> {
+            assertThrows(CircuitBreaker.Open.class, () -> breaker.call(() -> 3L));
+            return 2L;
+        }));
+        assertEquals(2L, result);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    }
+}
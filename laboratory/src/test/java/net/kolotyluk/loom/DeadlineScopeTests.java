@@ -0,0 +1,42 @@
+package net.kolotyluk.loom;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeadlineScopeTests {
+
+    @Test
+    public void stragglerIsLeftOut() throws InterruptedException {
+        // Lag.sleep() swallows the interrupt of shutdown, so the straggler still returns normally, just late
+        var slowLag = new Lag(Duration.ofMillis(500));
+        try (var scope = new DeadlineScope<Long>(Thread.ofVirtual().factory())) {
+            scope.fork(() -> 1L);
+            scope.fork(() -> {
+                slowLag.sleep();
+                return 2L;
+            });
+            var partial = scope.joinPartial(Duration.ofMillis(100));
+            assertTrue(partial.timedOut());
+            assertEquals(List.of(1L), partial.results());
+            assertEquals(1, partial.late());
+            assertEquals(0.5, partial.completeness());
+        }
+    }
+
+    @Test
+    public void allInTime() throws InterruptedException {
+        try (var scope = new DeadlineScope<Long>(Thread.ofVirtual().factory())) {
+            scope.fork(() -> 1L);
+            scope.fork(() -> { throw new IllegalStateException("failed"); });
+            var partial = scope.joinPartial(Duration.ofSeconds(10));
+            assertFalse(partial.timedOut());
+            assertEquals(List.of(1L), partial.results());
+            assertEquals(1, partial.failed());
+            assertEquals(0, partial.late());
+        }
+    }
+}
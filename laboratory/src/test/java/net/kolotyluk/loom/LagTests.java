@@ -8,8 +8,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
+import java.util.SplittableRandom;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -56,4 +60,58 @@ public class LagTests {
         }
     }
 
+    @Test
+    public void sleepPinnedReleasesMonitor() throws InterruptedException {
+        var lag = new Lag(Duration.ofMillis(1));
+        var monitor = new Object();
+        var duration = new AtomicReference<Duration>();
+        var stillHeld = new AtomicBoolean(true);
+        // holdsLock only answers for the current thread, so ask from the thread that slept
+        Thread.ofVirtual().start(() -> {
+            duration.set(lag.sleepPinned(monitor));
+            stillHeld.set(Thread.holdsLock(monitor));
+        }).join();
+        assertEquals(Duration.ofMillis(1), duration.get());
+        assertFalse(stillHeld.get());
+    }
+
+    @Test
+    public void sleepLockedReleasesLock() throws InterruptedException {
+        var lag = new Lag(Duration.ofMillis(1));
+        var lock = new ReentrantLock();
+        var duration = new AtomicReference<Duration>();
+        Thread.ofVirtual().start(() -> duration.set(lag.sleepLocked(lock))).join();
+        assertEquals(Duration.ofMillis(1), duration.get());
+        assertFalse(lock.isLocked());
+    }
+
+    @Test
+    public void virtualClockIsReproducible() {
+        var lag = new Lag(Duration.ofMillis(1), Duration.ofMillis(10));
+        var start = System.nanoTime();
+        var report1 = new VirtualClock(42).simulate(value -> lag.sleep(), 1000, 10);
+        var report2 = new VirtualClock(42).simulate(value -> lag.sleep(), 1000, 10);
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofMillis(1000)) < 0);
+        assertEquals(report1.makespan(), report2.makespan());
+        assertEquals(report1.latency(), report2.latency());
+        // Fewer slots, longer queues, so the latency grows, though the time in Lag is the same
+        var report3 = new VirtualClock(42).simulate(value -> lag.sleep(), 1000, 100);
+        var report4 = new VirtualClock(42).simulate(value -> lag.sleep(), 1000, 1);
+        assertTrue(report3.latency().p99().compareTo(report1.latency().p99()) < 0);
+        assertTrue(report1.latency().p99().compareTo(report4.latency().p99()) < 0);
+    }
+
+    @Test
+    public void randomDurationSpansWholeSeconds() {
+        var lag = new Lag(Duration.ofSeconds(1), Duration.ofSeconds(3));
+        var random = new SplittableRandom(42);
+        var longest = Duration.ZERO;
+        for (int i = 0; i < 100; i++) {
+            var duration = lag.getDuration(random);
+            assertTrue(duration.compareTo(Duration.ofSeconds(1)) >= 0 && duration.compareTo(Duration.ofSeconds(3)) <= 0);
+            if (duration.compareTo(longest) > 0) longest = duration;
+        }
+        assertTrue(longest.compareTo(Duration.ofSeconds(2)) > 0);
+    }
+
 }
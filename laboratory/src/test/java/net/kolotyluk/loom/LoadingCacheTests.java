@@ -0,0 +1,77 @@
+package net.kolotyluk.loom;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoadingCacheTests {
+
+    static final Duration forever = Duration.ofMinutes(10);
+
+    @Test
+    public void hitAfterMiss() {
+        var loads = new AtomicLong();
+        var cache = new LoadingCache<Long>(100, forever, forever, key -> { loads.incrementAndGet(); return key * 2; }, Thread.ofVirtual().factory());
+        assertEquals(2L, cache.get(1));
+        assertEquals(2L, cache.get(1));
+        assertEquals(4L, cache.get(2));
+        assertEquals(2, loads.get());
+        var stats = cache.stats();
+        assertEquals(1, stats.hits());
+        assertEquals(2, stats.misses());
+        assertEquals(2, stats.loads());
+    }
+
+    @Test
+    public void expiredEntryIsLoadedAgain() throws InterruptedException {
+        var version = new AtomicLong();
+        var timeToLive = Duration.ofMillis(50);
+        var cache = new LoadingCache<Long>(100, timeToLive, timeToLive, key -> version.incrementAndGet(), Thread.ofVirtual().factory());
+        assertEquals(1L, cache.get(1));
+        Thread.sleep(timeToLive.multipliedBy(2));
+        assertEquals(2L, cache.get(1), "expired, so the get waits for a new load");
+        assertEquals(0, cache.stats().refreshes());
+    }
+
+    @Test
+    public void refreshAheadReturnsTheOldValue() throws InterruptedException {
+        var version = new AtomicLong();
+        var refreshAfter = Duration.ofMillis(50);
+        var cache = new LoadingCache<Long>(100, forever, refreshAfter, key -> version.incrementAndGet(), Thread.ofVirtual().factory());
+        assertEquals(1L, cache.get(1));
+        Thread.sleep(refreshAfter.multipliedBy(2));
+        assertEquals(1L, cache.get(1), "stale, but not expired, so no waiting");
+        assertTimeout(Duration.ofSeconds(10), () -> { while (cache.get(1) != 2L) Thread.sleep(1); });
+        assertEquals(1, cache.stats().refreshes());
+    }
+
+    @Test
+    public void failureIsNotCached() {
+        var attempts = new AtomicLong();
+        var cache = new LoadingCache<Long>(100, forever, forever, key -> {
+            if (attempts.incrementAndGet() == 1) throw new IllegalStateException("failed");
+            return key;
+        }, Thread.ofVirtual().factory());
+        assertThrows(IllegalStateException.class, () -> cache.get(1));
+        assertEquals(0, cache.size());
+        assertEquals(1L, cache.get(1));
+        assertEquals(1, cache.stats().loadFailures());
+    }
+
+    @Test
+    public void oldestEntriesAreEvicted() {
+        var loads = new AtomicLong();
+        var cache = new LoadingCache<Long>(3, forever, forever, key -> { loads.incrementAndGet(); return key; }, Thread.ofVirtual().factory());
+        for (long key = 1; key <= 5; key++) cache.get(key);
+        assertEquals(3, cache.size());
+        assertEquals(2, cache.stats().evictions());
+        cache.get(5);
+        cache.get(3);
+        assertEquals(5, loads.get(), "the newest are still cached");
+        cache.get(1);
+        assertEquals(6, loads.get(), "the oldest was evicted");
+    }
+}
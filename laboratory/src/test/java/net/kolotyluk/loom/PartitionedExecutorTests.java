@@ -0,0 +1,102 @@
+package net.kolotyluk.loom;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PartitionedExecutorTests {
+
+    static final int keys = 50;
+    static final int tasksPerKey = 200;
+
+    @Test
+    public void perKeyOrder() throws Exception {
+        var sequences = new ArrayList<List<Integer>>();
+        for (int key = 0; key < keys; key++) sequences.add(new ArrayList<>()); // each only touched by its key's lane
+        var executor = new PartitionedExecutor(8, Thread.ofVirtual().factory());
+        try (var producers = Executors.newVirtualThreadPerTaskExecutor()) {
+            // A producer per key, all submitting at once, so the lanes see their keys interleaved
+            for (int key = 0; key < keys; key++) {
+                final var k = key;
+                producers.execute(() -> {
+                    for (int index = 0; index < tasksPerKey; index++) {
+                        final var i = index;
+                        executor.execute(k, () -> sequences.get(k).add(i));
+                    }
+                });
+            }
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        for (int key = 0; key < keys; key++) {
+            var sequence = sequences.get(key);
+            assertEquals(tasksPerKey, sequence.size(), "key " + key);
+            for (int index = 0; index < tasksPerKey; index++)
+                assertEquals(index, sequence.get(index), "key " + key + " out of order");
+        }
+    }
+
+    @Test
+    public void roundRobinWithoutKey() throws Exception {
+        var lanes = 4;
+        var threads = ConcurrentHashMap.<Thread>newKeySet();
+        try (var executor = new PartitionedExecutor(lanes, Thread.ofVirtual().factory())) {
+            var futures = new ArrayList<Future<?>>();
+            for (int index = 0; index < lanes; index++) futures.add(executor.submit(() -> threads.add(Thread.currentThread())));
+            for (var future : futures) future.get();
+        }
+        assertEquals(lanes, threads.size(), "each lane, with its own thread, took a turn");
+    }
+
+    @Test
+    public void shutdownStrandsNothing() throws Exception {
+        var completed = new AtomicLong();
+        var executor = new PartitionedExecutor(4, Thread.ofVirtual().factory());
+        var futures = new ArrayList<Future<Long>>();
+        for (long index = 0; index < 10_000; index++) futures.add(executor.submit(index, completed::incrementAndGet));
+        executor.shutdown();
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(0, () -> {}));
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(executor.isTerminated());
+        for (var future : futures) assertTrue(future.isDone());
+        assertEquals(10_000, completed.get());
+    }
+
+    @Test
+    public void shutdownNowReturnsWhatDidNotStart() throws Exception {
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var ran = new AtomicLong();
+        var executor = new PartitionedExecutor(1, Thread.ofVirtual().factory());
+        executor.execute(0, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        started.await();
+        for (int index = 0; index < 100; index++) executor.execute(0, ran::incrementAndGet);
+        var stopper = Thread.ofVirtual().start(() -> {
+            // shutdownNow waits for the running task, so let it go once the stop has been seen
+            while (!executor.isShutdown()) Thread.yield();
+            release.countDown();
+        });
+        List<Runnable> notStarted = executor.shutdownNow();
+        stopper.join();
+        assertTrue(executor.isTerminated());
+        assertEquals(100, ran.get() + notStarted.size());
+        assertFalse(notStarted.contains(null));
+    }
+}
@@ -0,0 +1,82 @@
+package net.kolotyluk.loom;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrioritySchedulerTests {
+
+    /**
+     * With one permit, held by a task waiting on the latch, everything else queues, so the order they run in is
+     * the order the scheduler chose.
+     */
+    static CountDownLatch block(PriorityScheduler scheduler) throws InterruptedException {
+        var started = new CountDownLatch(1);
+        var latch = new CountDownLatch(1);
+        scheduler.submit(0, () -> {
+            started.countDown();
+            latch.await();
+            return null;
+        });
+        started.await();
+        return latch;
+    }
+
+    @Test
+    public void priorityThenFifo() throws Exception {
+        var order = Collections.synchronizedList(new ArrayList<String>());
+        try (var scheduler = new PriorityScheduler(1, Thread.ofVirtual().factory())) {
+            var latch = block(scheduler);
+            scheduler.submit(10, () -> order.add("batch 1"));
+            scheduler.submit(0, () -> order.add("interactive 1"));
+            scheduler.submit(10, () -> order.add("batch 2"));
+            scheduler.submit(5, () -> order.add("normal"));
+            scheduler.submit(0, () -> order.add("interactive 2"));
+            assertEquals(5, scheduler.queued());
+            latch.countDown();
+        }
+        assertEquals(List.of("interactive 1", "interactive 2", "normal", "batch 1", "batch 2"), order);
+    }
+
+    @Test
+    public void earliestDeadlineFirst() throws Exception {
+        var order = Collections.synchronizedList(new ArrayList<String>());
+        var now = Instant.now();
+        try (var scheduler = new PriorityScheduler(1, Thread.ofVirtual().factory())) {
+            var latch = block(scheduler);
+            scheduler.submit(now.plusMillis(300), () -> order.add("300 ms"));
+            scheduler.submit(0, () -> order.add("no deadline"));
+            scheduler.submit(now.plusMillis(100), () -> order.add("100 ms"));
+            scheduler.submit(1, now.plusMillis(50), () -> order.add("lower priority, 50 ms"));
+            scheduler.submit(now.plusMillis(200), () -> order.add("200 ms"));
+            latch.countDown();
+        }
+        assertEquals(List.of("100 ms", "200 ms", "300 ms", "no deadline", "lower priority, 50 ms"), order);
+    }
+
+    @Test
+    public void closeRunsQueuedThenRejects() throws Exception {
+        var scheduler = new PriorityScheduler(2, Thread.ofVirtual().factory());
+        var futures = new ArrayList<Future<Integer>>();
+        for (int index = 0; index < 100; index++) {
+            final var value = index;
+            futures.add(scheduler.submit(index % 3, () -> value));
+        }
+        scheduler.close();
+        assertEquals(0, scheduler.queued());
+        assertEquals(0, scheduler.running());
+        for (int index = 0; index < 100; index++) {
+            assertTrue(futures.get(index).isDone(), "task " + index + " was left behind");
+            assertEquals(index, futures.get(index).get());
+        }
+        assertThrows(RejectedExecutionException.class, () -> scheduler.submit(0, () -> 1));
+    }
+}
@@ -0,0 +1,65 @@
+package net.kolotyluk.loom;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuorumScopeTests {
+
+    // Slow enough that the test would time out waiting for it, Lag.sleep() returns early when interrupted by shutdown
+    static final Lag slowLag = new Lag(Duration.ofSeconds(30));
+    static final Duration patience = Duration.ofSeconds(10);
+
+    static long slow(long value) {
+        slowLag.sleep();
+        return value;
+    }
+
+    @Test
+    public void majorityDoesNotWaitForStragglers() throws Exception {
+        var startTime = System.nanoTime();
+        try (var scope = QuorumScope.<Long>majority(5, Thread.ofVirtual().factory())) {
+            scope.fork(() -> 1L);
+            scope.fork(() -> slow(2L));
+            scope.fork(() -> 3L);
+            scope.fork(() -> slow(4L));
+            scope.fork(() -> 5L);
+            scope.join();
+            assertTrue(scope.isSatisfied());
+            assertEquals(List.of(1L, 3L, 5L), scope.results().stream().sorted().toList());
+        }
+        assertTrue(System.nanoTime() - startTime < patience.toNanos(), "waited for a straggler");
+    }
+
+    @Test
+    public void unreachableQuorumFailsFast() throws Exception {
+        var failure = new IllegalStateException("replica down");
+        var startTime = System.nanoTime();
+        try (var scope = QuorumScope.<Long>majority(3, Thread.ofVirtual().factory())) {
+            scope.fork(() -> { throw failure; });
+            scope.fork(() -> { throw failure; });
+            scope.fork(() -> slow(3L));
+            scope.join();
+            assertFalse(scope.isSatisfied());
+            var e = assertThrows(ExecutionException.class, scope::results);
+            assertSame(failure, e.getCause());
+        }
+        assertTrue(System.nanoTime() - startTime < patience.toNanos(), "waited once the quorum was out of reach");
+    }
+
+    @Test
+    public void firstKKeepsOnlyK() throws Exception {
+        try (var scope = QuorumScope.<Long>firstK(2, Thread.ofVirtual().factory())) {
+            for (long value = 0; value < 10; value++) {
+                final var v = value;
+                scope.fork(() -> v);
+            }
+            scope.join();
+            assertEquals(2, scope.results().size());
+        }
+    }
+}
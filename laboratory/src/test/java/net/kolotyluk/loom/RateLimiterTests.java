@@ -0,0 +1,64 @@
+package net.kolotyluk.loom;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterTests {
+
+    static final long millisecond = Duration.ofMillis(1).toNanos();
+
+    // The time the limiter was created, when its bucket is full, so reserve() can be driven without a clock
+    static long created(RateLimiter limiter) {
+        return limiter.next.get() + limiter.tolerance;
+    }
+
+    @Test
+    public void burstThenSpacing() {
+        var limiter = RateLimiter.tokenBucket(1000, 5);
+        var now = created(limiter);
+        for (int permit = 0; permit < 5; permit++)
+            assertTrue(limiter.reserve(now, 0) <= now, "permit " + permit + " of the burst is due right away");
+        assertEquals(Long.MIN_VALUE, limiter.reserve(now, 0), "the bucket is empty");
+
+        var previous = now;
+        for (int permit = 1; permit <= 5; permit++) {
+            var due = limiter.reserve(now, Long.MAX_VALUE);
+            assertEquals(now + permit * millisecond, due);
+            assertEquals(millisecond, due - previous);
+            previous = due;
+        }
+        assertEquals(10, limiter.permits());
+    }
+
+    @Test
+    public void idleRefillsOnlyUpToBurst() {
+        var limiter = RateLimiter.tokenBucket(1000, 3);
+        var later = created(limiter) + 100 * millisecond;
+        for (int permit = 0; permit < 3; permit++)
+            assertTrue(limiter.reserve(later, 0) <= later);
+        assertEquals(Long.MIN_VALUE, limiter.reserve(later, 0), "idle for 100 permits, but the burst is 3");
+    }
+
+    @Test
+    public void leakyBucketHasNoBurst() {
+        var limiter = RateLimiter.leakyBucket(1000);
+        var now = created(limiter);
+        assertEquals(now, limiter.reserve(now, 0));
+        assertEquals(Long.MIN_VALUE, limiter.reserve(now, 0));
+        assertEquals(Long.MIN_VALUE, limiter.reserve(now, millisecond - 1), "due in exactly one interval");
+        assertEquals(now + millisecond, limiter.reserve(now, millisecond));
+    }
+
+    @Test
+    public void acquireWaitsForItsPermit() throws InterruptedException {
+        var limiter = RateLimiter.leakyBucket(100);
+        var startTime = System.nanoTime();
+        for (int permit = 0; permit < 6; permit++) limiter.acquire();
+        var elapsed = System.nanoTime() - startTime;
+        assertTrue(elapsed >= 5 * 10 * millisecond - millisecond, "6 permits 10 ms apart took " + elapsed / 1e6 + " ms");
+        assertEquals(6, limiter.permits());
+    }
+}
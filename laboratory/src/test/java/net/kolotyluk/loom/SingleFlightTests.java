@@ -0,0 +1,75 @@
+package net.kolotyluk.loom;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.LongFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SingleFlightTests {
+
+    /**
+     * Start a caller per key in <tt>keys</tt>, and only let the function return once every caller is parked, the
+     * leader of each key in the function, and the rest waiting on its flight.
+     */
+    static <V> List<Thread> callers(SingleFlight<V> singleFlight, LongFunction<V> function, ConcurrentHashMap<Thread, Object> outcomes, long... keys) throws InterruptedException {
+        var release = new CountDownLatch(1);
+        var threads = new ArrayList<Thread>();
+        for (var key : keys)
+            threads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    outcomes.put(Thread.currentThread(), singleFlight.call(key, k -> {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return function.apply(k);
+                    }));
+                } catch (RuntimeException e) {
+                    outcomes.put(Thread.currentThread(), e);
+                }
+            }));
+        while (!threads.stream().allMatch(thread -> thread.getState() == Thread.State.WAITING)) Thread.sleep(1);
+        release.countDown();
+        for (var thread : threads) thread.join();
+        return threads;
+    }
+
+    @Test
+    public void concurrentCallsShareOneExecution() throws InterruptedException {
+        var singleFlight = new SingleFlight<Long>();
+        var outcomes = new ConcurrentHashMap<Thread, Object>();
+        callers(singleFlight, key -> key * 2, outcomes, 7, 7, 7, 7, 7, 9, 9, 9);
+        assertEquals(8, singleFlight.calls());
+        assertEquals(2, singleFlight.executions(), "one per key");
+        assertEquals(6, singleFlight.shared());
+        assertEquals(5, outcomes.values().stream().filter(outcome -> outcome.equals(14L)).count());
+        assertEquals(3, outcomes.values().stream().filter(outcome -> outcome.equals(18L)).count());
+        assertEquals(0, singleFlight.inFlight());
+    }
+
+    @Test
+    public void everyCallerGetsTheFailure() throws InterruptedException {
+        var singleFlight = new SingleFlight<Long>();
+        var outcomes = new ConcurrentHashMap<Thread, Object>();
+        var failure = new IllegalStateException("failed");
+        callers(singleFlight, key -> { throw failure; }, outcomes, 1, 1, 1);
+        assertEquals(1, singleFlight.executions());
+        assertEquals(3, outcomes.size());
+        for (var outcome : outcomes.values()) assertSame(failure, outcome);
+    }
+
+    @Test
+    public void completedFlightIsNotReused() {
+        var singleFlight = new SingleFlight<Long>();
+        assertEquals(2L, singleFlight.call(1, key -> key * 2));
+        assertEquals(3L, singleFlight.call(1, key -> key * 3), "a later call starts a new flight");
+        assertEquals(2, singleFlight.executions());
+        assertEquals(0, singleFlight.inFlight());
+    }
+}
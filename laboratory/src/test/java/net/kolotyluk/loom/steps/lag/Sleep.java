@@ -48,7 +48,7 @@ public class Sleep implements En {
 
         And("the thread {string} interrupted", (String interrupted) -> {
             if (interrupted.equalsIgnoreCase("is")) {
-                Thread.sleep(maximumDuration.minus(minimumDuration).dividedBy(2));
+                // Half the minimum has passed, so the lag is still sleeping, waiting any longer could be too late
                 thread.interrupt();
             }
         });